@@ -5,20 +5,31 @@ import com.nfolkert.utils.*;
 import com.nfolkert.exception.BaseRuntimeException;
 import com.nfolkert.json.JSONObject;
 import com.nfolkert.json.JSONArray;
+import com.nfolkert.json.JSONTokener;
 import com.nfolkert.collections.ListOrderedMap;
 
 import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.Map;
 import java.net.URLEncoder;
 
+import org.apache.commons.io.IOUtils;
+
 /**
  */
 public class GeoCodeManager
 {
     private static final File kGeoCodeCache = new File(KivaProperties._kivaProps.getProperty("geoCodeCache"));
+    private static final int kSnapshotVersion = 1;
 
     Map<String, Pair<Double, Double>> _map = new ListOrderedMap<String, Pair<Double, Double>>();
+    /**
+     * New geocodes since the cache file was last rewritten; replayed over the cache file on startup
+     */
+    final MutationJournal _journal = new MutationJournal(new File(kGeoCodeCache.getPath() + ".journal"));
     int _lookups;
+    final CacheMetrics _metrics = MetricsRegistry.getCacheMetrics("GeoCode");
 
     private static GeoCodeManager _instance;
 
@@ -39,7 +50,12 @@ public class GeoCodeManager
     {
         final GeoCodeManager gcm = getInstance();
         Pair<Double, Double> res = gcm._map.get(location);
-        if (res != null) return res;
+        if (res != null)
+        {
+            gcm._metrics.hit(0);
+            return res;
+        }
+        gcm._metrics.miss();
 
         res = gcm.lookupAndCache(location);
 
@@ -53,7 +69,9 @@ public class GeoCodeManager
             throws Exception
     {
         _lookups++;
+        final long start = System.nanoTime();
         final JSONObject json = lookup(location);
+        _metrics.fetched(System.nanoTime() - start);
 
         final double lat;
         final double lon;
@@ -71,6 +89,12 @@ public class GeoCodeManager
 
         addGeoCode(location, lat, lon);
 
+        final JSONObject mutation = new JSONObject();
+        mutation.put("loc", location);
+        mutation.put("lat", lat);
+        mutation.put("long", lon);
+        _journal.append(mutation);
+
         return new Pair<Double, Double>(lat, lon);
     }
 
@@ -79,30 +103,99 @@ public class GeoCodeManager
     {
         location = URLEncoder.encode(location, StringUtilsExt.kCHARSET_UTF8);
         String url = gMapsRootUrl + "?q=" + location + "&output=json&sensor=false&key=" + kGoogleAPIKey;
-        final JSONObject json = new JSONObject(URLUtils.getURL(url));
+        final JSONObject json;
+        final Reader in = new InputStreamReader(URLUtils.openURL(url), StringUtilsExt.kCHARSET_UTF8);
+        try
+        {
+            json = new JSONObject(new JSONTokener(in));
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
 
         final int status = json.getJSONObject("Status").getInt("code");
         if (status != 200) return null;
         return json;
     }
 
+    private void readGeoCode(JSONObject jobj)
+            throws Exception
+    {
+        String loc = jobj.getString("loc");
+        double lat = jobj.getDouble("lat");
+        double lon = jobj.getDouble("long");
+        addGeoCode(loc, lat, lon);
+    }
+
+    /**
+     * Each entry is the location followed by its latitude and longitude as doubles.
+     *
+     * @return false, with nothing loaded, if the snapshot could not be read
+     */
+    private boolean readSnapshot(File snapshot)
+    {
+        try
+        {
+            final BinarySnapshot.Reader in = new BinarySnapshot.Reader(snapshot);
+            if (in.getVersion() != kSnapshotVersion)
+                return false;
+            final int count = in.getEntryCount();
+            _map = new ListOrderedMap<String, Pair<Double, Double>>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++)
+            {
+                final String loc = in.readString();
+                final double lat = in.readDouble();
+                final double lon = in.readDouble();
+                addGeoCode(loc, lat, lon);
+            }
+            return true;
+        }
+        catch (Exception e)
+        {
+            System.out.println("Ignoring unreadable geocode cache snapshot " + snapshot + ": " + e);
+            _map = new ListOrderedMap<String, Pair<Double, Double>>();
+            return false;
+        }
+    }
+
+    private void writeSnapshot()
+            throws Exception
+    {
+        final BinarySnapshot.Writer out =
+                new BinarySnapshot.Writer(BinarySnapshot.getSnapshotFile(kGeoCodeCache), kSnapshotVersion, _map.size());
+        try
+        {
+            for (Map.Entry<String, Pair<Double, Double>> entry : _map.entrySet())
+            {
+                out.writeString(entry.getKey());
+                out.writeDouble(entry.getValue().getHead());
+                out.writeDouble(entry.getValue().getTail());
+            }
+            out.commit();
+        }
+        catch (Exception e)
+        {
+            out.abandon();
+            throw e;
+        }
+    }
+
     private static GeoCodeManager readInstance()
     {
         try
         {
             final GeoCodeManager gcm = new GeoCodeManager();
-            if (!kGeoCodeCache.exists())
-                return gcm;
-            final String jsonCache = FileUtilsExt.readFileAsString(kGeoCodeCache);
-            JSONArray jarr = new JSONArray(jsonCache);
-            for (int i = 0; i < jarr.length(); i++)
+            final File snapshot = BinarySnapshot.getCurrent(kGeoCodeCache);
+            if ((snapshot == null || !gcm.readSnapshot(snapshot)) && kGeoCodeCache.exists())
             {
-                final JSONObject jobj = jarr.getJSONObject(i);
-                String loc = jobj.getString("loc");
-                double lat = jobj.getDouble("lat");
-                double lon = jobj.getDouble("long");
-                gcm.addGeoCode(loc, lat, lon);
+                final String jsonCache = FileUtilsExt.readFileAsString(kGeoCodeCache);
+                JSONArray jarr = new JSONArray(jsonCache);
+                for (int i = 0; i < jarr.length(); i++)
+                    gcm.readGeoCode(jarr.getJSONObject(i));
             }
+            for (JSONObject mutation : gcm._journal.replay())
+                gcm.readGeoCode(mutation);
             return gcm;
         }
         catch (Exception e)
@@ -148,6 +241,8 @@ public class GeoCodeManager
         GeoCodeManager instance = getInstance();
         System.out.println("Google maps geocode cache contains " + instance._map.size() + " entries");
         System.out.println("Required " + instance._lookups + " lookups for cache misses");
+        if (instance._metrics.getFetches() > 0)
+            System.out.println(instance._metrics.getSummary());
 
         if (verbose)
         {
@@ -163,6 +258,12 @@ public class GeoCodeManager
             throws Exception
     {
         GeoCodeManager instance = getInstance();
+        if (BinarySnapshot.getCurrent(kGeoCodeCache) != null && !instance._journal.shouldCheckpoint(instance._map.size()))
+        {
+            instance._journal.sync();
+            return;
+        }
+
         JSONArray jarr = new JSONArray();
         for (String loc: instance._map.keySet())
         {
@@ -174,7 +275,9 @@ public class GeoCodeManager
             jarr.put(jobj);
         }
         JSONUtils.FormattedPrinter printer = new JSONUtils.FormattedPrinter(jarr);
-        FileUtilsExt.writeFile(kGeoCodeCache, printer.formatPrint());
+        FileUtilsExt.writeFileDurably(kGeoCodeCache, printer.formatPrint());
+        instance.writeSnapshot();
+        instance._journal.reset();
     }
 
     public static void main(String[] args)
@@ -309,6 +309,72 @@ public class JSONTokener {
         }
     }
 
+    /**
+     * Skip the next value without building it. Strings, objects and arrays
+     * are scanned to their end, and unquoted text up to the next delimiter.
+     * Nothing is allocated, so this is far cheaper than nextValue for
+     * values that are not wanted.
+     * @throws JSONException If a string, object or array is unterminated.
+     */
+    public void skipValue() throws JSONException {
+        char c = nextClean();
+        switch (c) {
+            case '"':
+            case '\'':
+                skipString(c);
+                return;
+            case '{':
+            case '[':
+                skipNested();
+                return;
+        }
+        while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
+            c = next();
+        }
+        back();
+    }
+
+    private void skipString(char quote) throws JSONException {
+        for (;;) {
+            char c = next();
+            switch (c) {
+            case 0:
+            case '\n':
+            case '\r':
+                throw syntaxError("Unterminated string");
+            case '\\':
+                next();
+                break;
+            default:
+                if (c == quote) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void skipNested() throws JSONException {
+        for (int depth = 1; depth > 0;) {
+            char c = nextClean();
+            switch (c) {
+            case 0:
+                throw syntaxError("Unterminated object or array");
+            case '"':
+            case '\'':
+                skipString(c);
+                break;
+            case '{':
+            case '[':
+                depth++;
+                break;
+            case '}':
+            case ']':
+                depth--;
+                break;
+            }
+        }
+    }
+
     public String nextValueDedup()
             throws JSONException
     {
@@ -0,0 +1,113 @@
+package com.nfolkert.kiva.utils;
+
+import java.util.Properties;
+
+/**
+ * How long cached results of each query type stay usable.  A result younger than its type's time to live is
+ * fresh.  Past that it is stale for the revalidation window: it is still served, but a refresh is started in the
+ * background.  Older than both it has expired and is fetched again before being served.  Types without a time
+ * to live never expire.
+ */
+public class KivaCachePolicy
+{
+    public enum Freshness
+    {
+        Fresh,
+        Stale,
+        Expired
+    }
+
+    private static final long kMinute = 60 * 1000L;
+    private static final long kHour = 60 * kMinute;
+    private static final long kDay = 24 * kHour;
+
+    private final long[] _timeToLiveMillis = new long[KivaQueryType.values().length];
+    private final long[] _staleWhileRevalidateMillis = new long[KivaQueryType.values().length];
+
+    public KivaCachePolicy()
+    {
+        for (KivaQueryType type : KivaQueryType.values())
+            setTimeToLive(type, -1, 0);
+    }
+
+    /**
+     * Starts from the default policy and applies any queryCacheTTL.&lt;Type&gt; and queryCacheStaleTTL.&lt;Type&gt;
+     * durations, written like 90s, 30m, 24h or 7d; "never" turns expiry off for a type.
+     */
+    public static KivaCachePolicy fromProperties(Properties props)
+    {
+        final KivaCachePolicy policy = defaultPolicy();
+        for (KivaQueryType type : KivaQueryType.values())
+        {
+            final String ttl = props.getProperty("queryCacheTTL." + type.name());
+            final String stale = props.getProperty("queryCacheStaleTTL." + type.name());
+            if (ttl == null && stale == null) continue;
+
+            final long ttlMillis = ttl == null ? policy.getTimeToLiveMillis(type) : parseDuration(ttl);
+            final long staleMillis = stale == null ? Math.max(ttlMillis, 0) : parseDuration(stale);
+            policy.setTimeToLive(type, ttlMillis, staleMillis);
+        }
+        return policy;
+    }
+
+    /**
+     * Team rosters change daily, lender profiles rarely, and recent lending actions by the minute.  Lender search
+     * pages share the Lenders type with lender profiles.  The newest lenders are kept current by
+     * KivaNewestLenderSync, and dump-derived loans do not come from the API.
+     */
+    public static KivaCachePolicy defaultPolicy()
+    {
+        final KivaCachePolicy policy = new KivaCachePolicy();
+        policy.setTimeToLive(KivaQueryType.TeamLenders, kDay, kDay);
+        policy.setTimeToLive(KivaQueryType.Lenders, 7 * kDay, 7 * kDay);
+        policy.setTimeToLive(KivaQueryType.RecentLendingActions, kMinute, 0);
+        return policy;
+    }
+
+    /**
+     * @param timeToLiveMillis negative for results that never expire
+     */
+    public void setTimeToLive(KivaQueryType type, long timeToLiveMillis, long staleWhileRevalidateMillis)
+    {
+        _timeToLiveMillis[type.ordinal()] = timeToLiveMillis;
+        _staleWhileRevalidateMillis[type.ordinal()] = staleWhileRevalidateMillis;
+    }
+
+    public long getTimeToLiveMillis(KivaQueryType type)
+    {
+        return _timeToLiveMillis[type.ordinal()];
+    }
+
+    public boolean expires(KivaQueryType type)
+    {
+        return _timeToLiveMillis[type.ordinal()] >= 0;
+    }
+
+    public Freshness getFreshness(KivaQueryType type, long writtenMillis, long nowMillis)
+    {
+        final long ttl = _timeToLiveMillis[type.ordinal()];
+        if (ttl < 0) return Freshness.Fresh;
+
+        final long age = nowMillis - writtenMillis;
+        if (age <= ttl) return Freshness.Fresh;
+        if (age <= ttl + _staleWhileRevalidateMillis[type.ordinal()]) return Freshness.Stale;
+        return Freshness.Expired;
+    }
+
+    public static long parseDuration(String duration)
+    {
+        final String trimmed = duration.trim().toLowerCase();
+        if (trimmed.equals("never")) return -1;
+
+        final long unit;
+        switch (trimmed.charAt(trimmed.length() - 1))
+        {
+            case 's': unit = 1000L; break;
+            case 'm': unit = kMinute; break;
+            case 'h': unit = kHour; break;
+            case 'd': unit = kDay; break;
+            default: throw new IllegalArgumentException("Duration needs a unit of s, m, h or d: " + duration);
+        }
+        return Long.parseLong(trimmed.substring(0, trimmed.length() - 1).trim()) * unit;
+    }
+}
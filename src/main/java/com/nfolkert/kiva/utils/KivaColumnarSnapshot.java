@@ -0,0 +1,769 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.collections.Predicate;
+import com.nfolkert.json.JSONObject;
+import com.nfolkert.utils.BinarySnapshot;
+import com.nfolkert.utils.StringUtilsExt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Column-per-field copy of a dump's lenders or loans, built once per dump and memory-mapped for repeated scans.
+ * Each column is one of:
+ * <ul>
+ * <li>Int: an int per row, such as loan_count</li>
+ * <li>Day: an int per row counting days since 1970-01-01, for dates such as member_since</li>
+ * <li>Dictionary: each distinct value stored once and an int code per row, for repetitive values such as
+ * whereabouts and country</li>
+ * <li>Text: UTF-8 bytes with an offset per row, for values such as names that are mostly distinct</li>
+ * </ul>
+ * Missing values are Integer.MIN_VALUE in int columns, code -1 in dictionary columns and empty in text columns.
+ * Records rebuilt from a snapshot leave missing values out, and since text columns store them as empty, empty
+ * text values too.  Day values come back as midnight UTC of their day, as in 2009-12-01T00:00:00Z, whatever time
+ * of day the dump recorded.
+ * <p/>
+ * select evaluates its predicates one column at a time over the rows still matching, so a predicate on a
+ * dictionary column is evaluated once per distinct value rather than once per row.
+ */
+public class KivaColumnarSnapshot
+{
+    public static final int kMissing = Integer.MIN_VALUE;
+    private static final int kVersion = 2;
+
+    public enum ColumnKind
+    {
+        Int,
+        Day,
+        Dictionary,
+        Text
+    }
+
+    static class ColumnSpec
+    {
+        final String name;
+        final String[] path;
+        final ColumnKind kind;
+
+        ColumnSpec(String name, ColumnKind kind)
+        {
+            this(name, name, kind);
+        }
+
+        /**
+         * @param path the field's dotted path within a record, for fields of nested objects
+         */
+        ColumnSpec(String name, String path, ColumnKind kind)
+        {
+            this.name = name;
+            this.path = path.split("\\.");
+            this.kind = kind;
+        }
+    }
+
+    private static final ColumnSpec[] kLenderColumns = {
+            new ColumnSpec("lender_id", ColumnKind.Text),
+            new ColumnSpec("name", ColumnKind.Text),
+            new ColumnSpec("whereabouts", ColumnKind.Dictionary),
+            new ColumnSpec("country_code", ColumnKind.Dictionary),
+            new ColumnSpec("occupation", ColumnKind.Dictionary),
+            new ColumnSpec("member_since", ColumnKind.Day),
+            new ColumnSpec("loan_count", ColumnKind.Int),
+            new ColumnSpec("personal_url", ColumnKind.Text),
+    };
+
+    private static final ColumnSpec[] kLoanColumns = {
+            new ColumnSpec("id", ColumnKind.Int),
+            new ColumnSpec("name", ColumnKind.Text),
+            new ColumnSpec("status", ColumnKind.Dictionary),
+            new ColumnSpec("sector", ColumnKind.Dictionary),
+            new ColumnSpec("activity", ColumnKind.Dictionary),
+            new ColumnSpec("country", "location.country", ColumnKind.Dictionary),
+            new ColumnSpec("loan_amount", ColumnKind.Int),
+            new ColumnSpec("funded_amount", ColumnKind.Int),
+            new ColumnSpec("posted_date", ColumnKind.Day),
+    };
+
+    static ColumnSpec[] getSchema(KivaQueryType type)
+    {
+        if (type == KivaQueryType.Lenders)
+            return kLenderColumns;
+        else if (type == KivaQueryType.Loans)
+            return kLoanColumns;
+        else
+            throw new UnsupportedOperationException("No columnar snapshot of " + type.name());
+    }
+
+    private final File _file;
+    private final KivaQueryType _type;
+    private final int _rowCount;
+    private final Map<String, Column> _columns = new LinkedHashMap<String, Column>();
+
+    private KivaColumnarSnapshot(File file, KivaQueryType type, BinarySnapshot.Reader in)
+            throws IOException
+    {
+        _file = file;
+        _type = type;
+        _rowCount = in.getEntryCount();
+        final ColumnSpec[] schema = getSchema(type);
+        for (ColumnSpec spec : schema)
+        {
+            final String name = in.readString();
+            if (!name.equals(spec.name))
+                throw new IOException("Expected column " + spec.name + " but found " + name);
+            final Column column;
+            switch (spec.kind)
+            {
+                case Int:
+                case Day:
+                    column = new IntColumn(spec, in.readSlice(_rowCount * 4).asIntBuffer());
+                    break;
+                case Dictionary:
+                    final String[] dictionary = new String[in.readInt()];
+                    for (int i = 0; i < dictionary.length; i++)
+                        dictionary[i] = in.readString();
+                    column = new DictionaryColumn(spec, dictionary, in.readSlice(_rowCount * 4).asIntBuffer());
+                    break;
+                case Text:
+                    final IntBuffer offsets = in.readSlice((_rowCount + 1) * 4).asIntBuffer();
+                    column = new TextColumn(spec, offsets, in.readSlice(offsets.get(_rowCount)));
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+            _columns.put(name, column);
+        }
+    }
+
+    /**
+     * @return where the snapshot of the given dump and type is kept: next to the dump
+     */
+    public static File getSnapshotFile(File zipFile, KivaQueryType type)
+    {
+        return new File(zipFile.getPath() + "." + type.name() + ".columns");
+    }
+
+    /**
+     * @return the snapshot, or null if there is none, or it is of an older version or was built from a dump since
+     * replaced
+     */
+    public static KivaColumnarSnapshot open(File snapshotFile, File zipFile, KivaQueryType type)
+            throws IOException
+    {
+        if (!snapshotFile.exists())
+            return null;
+        final BinarySnapshot.Reader in = new BinarySnapshot.Reader(snapshotFile);
+        if (in.getVersion() != kVersion || !in.readSource(zipFile))
+            return null;
+        return new KivaColumnarSnapshot(snapshotFile, type, in);
+    }
+
+    /**
+     * Opens the dump's snapshot of the type, first building it from the dump if it is missing or was built from
+     * another copy of the dump.
+     */
+    public static KivaColumnarSnapshot openOrBuild(KivaDump dump, KivaQueryType type)
+            throws Exception
+    {
+        final File snapshotFile = getSnapshotFile(dump.getZipFile(), type);
+        final KivaColumnarSnapshot current = open(snapshotFile, dump.getZipFile(), type);
+        if (current != null)
+            return current;
+        build(dump, type, snapshotFile);
+        final KivaColumnarSnapshot built = open(snapshotFile, dump.getZipFile(), type);
+        if (built == null)
+            throw new IOException("Dump " + dump.getZipFile() + " changed while building " + snapshotFile);
+        return built;
+    }
+
+    public static void build(KivaDump dump, KivaQueryType type, File snapshotFile)
+            throws Exception
+    {
+        final Builder builder = new Builder(getSchema(type));
+        dump.runQuery(type, builder);
+        builder.write(snapshotFile, dump.getZipFile());
+    }
+
+    public File getFile()
+    {
+        return _file;
+    }
+
+    /**
+     * Opens the sorted index of a day column, first building it if it is missing or was built from another copy
+     * of the snapshot.
+     */
+    public KivaDayIndex openOrBuildDayIndex(String column)
+            throws Exception
+    {
+        final File indexFile = new File(_file.getPath() + "." + column + ".days");
+        final KivaDayIndex current = KivaDayIndex.open(indexFile, _file);
+        if (current != null)
+            return current;
+        KivaDayIndex.build(getIntColumn(column), _rowCount, _file, indexFile);
+        return checkBuilt(KivaDayIndex.open(indexFile, _file), indexFile);
+    }
+
+    /**
+     * Opens the value index of a dictionary column, first building it if it is missing or was built from another
+     * copy of the snapshot.
+     *
+     * @param normalized whether values differing only in case, punctuation and spacing share an index entry
+     */
+    public KivaValueIndex openOrBuildValueIndex(String column, boolean normalized)
+            throws Exception
+    {
+        final File indexFile = new File(_file.getPath() + "." + column + (normalized ? ".normalized" : "") + ".values");
+        final KivaValueIndex current = KivaValueIndex.open(indexFile, _file);
+        if (current != null)
+            return current;
+        KivaValueIndex.build(getDictionaryColumn(column), _rowCount, normalized, _file, indexFile);
+        return checkBuilt(KivaValueIndex.open(indexFile, _file), indexFile);
+    }
+
+    private <T> T checkBuilt(T index, File indexFile)
+            throws IOException
+    {
+        if (index == null)
+            throw new IOException("Snapshot " + _file + " changed while building " + indexFile);
+        return index;
+    }
+
+    public KivaQueryType getType()
+    {
+        return _type;
+    }
+
+    public int getRowCount()
+    {
+        return _rowCount;
+    }
+
+    public Column getColumn(String name)
+    {
+        final Column column = _columns.get(name);
+        if (column == null)
+            throw new IllegalArgumentException("No column " + name + " in " + _type.name() + " snapshot");
+        return column;
+    }
+
+    public IntColumn getIntColumn(String name)
+    {
+        return (IntColumn) getColumn(name);
+    }
+
+    public DictionaryColumn getDictionaryColumn(String name)
+    {
+        return (DictionaryColumn) getColumn(name);
+    }
+
+    public TextColumn getTextColumn(String name)
+    {
+        return (TextColumn) getColumn(name);
+    }
+
+    /**
+     * @return the rows matching every predicate, evaluated in the order given, so the most selective should come
+     * first
+     */
+    public BitSet select(ColumnPredicate... predicates)
+    {
+        final BitSet rows = new BitSet(_rowCount);
+        rows.set(0, _rowCount);
+        return select(rows, predicates);
+    }
+
+    /**
+     * @param candidates the rows to consider, such as those found through an index; narrowed in place
+     */
+    public BitSet select(BitSet candidates, ColumnPredicate... predicates)
+    {
+        final BitSet rows = candidates;
+        for (ColumnPredicate predicate : predicates)
+        {
+            if (rows.isEmpty()) break;
+            predicate.retain(this, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Hands the handler each matching row, rebuilt as a record holding the handler's fields.  Rebuilt records differ
+     * from the dump's where the class comment says: Day values are truncated to midnight, and missing values,
+     * including empty text, are left out.
+     */
+    public void scan(KivaQueryHandler handler, ColumnPredicate... predicates)
+            throws Exception
+    {
+        scan(handler, select(predicates));
+    }
+
+    public void scan(KivaQueryHandler handler, BitSet rows)
+            throws Exception
+    {
+        final Set<String> fields = handler.getFields();
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1))
+            handler.handle(getRecord(row, fields));
+    }
+
+    /**
+     * @param fields the top-level fields to include, or null for all of them
+     * @return the row as a record, with Day values at midnight UTC and without missing or empty text values
+     */
+    public JSONObject getRecord(int row, Set<String> fields)
+            throws Exception
+    {
+        final JSONObject record = new JSONObject();
+        for (Column column : _columns.values())
+        {
+            final String[] path = column._spec.path;
+            if (fields != null && !fields.contains(path[0])) continue;
+            final Object value = column.getValue(row);
+            if (value == null) continue;
+
+            JSONObject parent = record;
+            for (int i = 0; i < path.length - 1; i++)
+            {
+                JSONObject child = parent.optJSONObject(path[i]);
+                if (child == null)
+                {
+                    child = new JSONObject();
+                    parent.put(path[i], child);
+                }
+                parent = child;
+            }
+            parent.put(path[path.length - 1], value);
+        }
+        return record;
+    }
+
+    public static abstract class Column
+    {
+        final ColumnSpec _spec;
+
+        Column(ColumnSpec spec)
+        {
+            _spec = spec;
+        }
+
+        public String getName()
+        {
+            return _spec.name;
+        }
+
+        public ColumnKind getKind()
+        {
+            return _spec.kind;
+        }
+
+        /**
+         * @return the row's value as it would appear in a record, or null if it is missing
+         */
+        abstract Object getValue(int row);
+    }
+
+    public static class IntColumn extends Column
+    {
+        private final IntBuffer _values;
+
+        IntColumn(ColumnSpec spec, IntBuffer values)
+        {
+            super(spec);
+            _values = values;
+        }
+
+        public int get(int row)
+        {
+            return _values.get(row);
+        }
+
+        Object getValue(int row)
+        {
+            final int value = _values.get(row);
+            if (value == kMissing)
+                return null;
+            return getKind() == ColumnKind.Day ? formatEpochDay(value) + "T00:00:00Z" : (Object) value;
+        }
+    }
+
+    public static class DictionaryColumn extends Column
+    {
+        private final String[] _dictionary;
+        private final IntBuffer _codes;
+
+        DictionaryColumn(ColumnSpec spec, String[] dictionary, IntBuffer codes)
+        {
+            super(spec);
+            _dictionary = dictionary;
+            _codes = codes;
+        }
+
+        public int getCode(int row)
+        {
+            return _codes.get(row);
+        }
+
+        public String get(int row)
+        {
+            final int code = _codes.get(row);
+            return code < 0 ? null : _dictionary[code];
+        }
+
+        public int getDictionarySize()
+        {
+            return _dictionary.length;
+        }
+
+        public String getDictionaryValue(int code)
+        {
+            return _dictionary[code];
+        }
+
+        Object getValue(int row)
+        {
+            return get(row);
+        }
+    }
+
+    public static class TextColumn extends Column
+    {
+        private final IntBuffer _offsets;
+        private final ByteBuffer _bytes;
+
+        TextColumn(ColumnSpec spec, IntBuffer offsets, ByteBuffer bytes)
+        {
+            super(spec);
+            _offsets = offsets;
+            _bytes = bytes;
+        }
+
+        public String get(int row)
+        {
+            final int start = _offsets.get(row);
+            final byte[] utf8 = new byte[_offsets.get(row + 1) - start];
+            final ByteBuffer bytes = _bytes.duplicate();
+            bytes.position(start);
+            bytes.get(utf8);
+            try
+            {
+                return new String(utf8, StringUtilsExt.kCHARSET_UTF8);
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object getValue(int row)
+        {
+            // Stored alike, so an empty value cannot be told from a missing one
+            final String value = get(row);
+            return value.length() == 0 ? null : value;
+        }
+    }
+
+    /**
+     * Narrows a set of rows by the values of one column.
+     */
+    public static abstract class ColumnPredicate
+    {
+        abstract void retain(KivaColumnarSnapshot snapshot, BitSet rows);
+
+        /**
+         * Rows whose int or day value lies in [min, max]; missing values never match.
+         */
+        public static ColumnPredicate between(final String column, final int min, final int max)
+        {
+            return new ColumnPredicate()
+            {
+                void retain(KivaColumnarSnapshot snapshot, BitSet rows)
+                {
+                    final IntColumn values = snapshot.getIntColumn(column);
+                    for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1))
+                    {
+                        final int value = values.get(row);
+                        if (value == kMissing || value < min || value > max)
+                            rows.clear(row);
+                    }
+                }
+            };
+        }
+
+        /**
+         * @throws IllegalArgumentException if the bound is not a yyyy-mm-dd date
+         */
+        public static ColumnPredicate onOrAfter(String dayColumn, String yyyy_mm_dd)
+        {
+            final int day = parseEpochDay(yyyy_mm_dd);
+            if (day == kMissing)
+                throw new IllegalArgumentException("Not a yyyy-mm-dd date: " + yyyy_mm_dd);
+            return between(dayColumn, day, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Rows whose dictionary value satisfies the predicate, which is evaluated once per distinct value among
+         * the rows being narrowed.
+         */
+        public static ColumnPredicate matches(final String column, final Predicate<String> predicate)
+        {
+            return new ColumnPredicate()
+            {
+                void retain(KivaColumnarSnapshot snapshot, BitSet rows)
+                {
+                    final DictionaryColumn values = snapshot.getDictionaryColumn(column);
+                    final BitSet evaluated = new BitSet(values.getDictionarySize());
+                    final BitSet codes = new BitSet(values.getDictionarySize());
+                    for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1))
+                    {
+                        final int code = values.getCode(row);
+                        if (code < 0 || evaluated.get(code)) continue;
+                        evaluated.set(code);
+                        if (predicate.evaluate(values.getDictionaryValue(code)))
+                            codes.set(code);
+                    }
+                    retainCodes(values, codes, rows);
+                }
+            };
+        }
+
+        public static ColumnPredicate in(final String column, String... values)
+        {
+            final Set<String> wanted = new HashSet<String>();
+            for (String value : values)
+                wanted.add(value);
+            return matches(column, new Predicate<String>()
+            {
+                public boolean evaluate(String value)
+                {
+                    return wanted.contains(value);
+                }
+            });
+        }
+
+        static void retainCodes(DictionaryColumn values, BitSet codes, BitSet rows)
+        {
+            for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1))
+            {
+                final int code = values.getCode(row);
+                if (code < 0 || !codes.get(code))
+                    rows.clear(row);
+            }
+        }
+    }
+
+    /**
+     * @return days since 1970-01-01 of a date starting "yyyy-mm-dd", such as Kiva's ISO timestamps, or kMissing if
+     * the value is not such a date
+     */
+    public static int parseEpochDay(String date)
+    {
+        if (date == null || date.length() < 10 || date.charAt(4) != '-' || date.charAt(7) != '-')
+            return kMissing;
+        try
+        {
+            int y = Integer.parseInt(date.substring(0, 4));
+            final int m = Integer.parseInt(date.substring(5, 7));
+            final int d = Integer.parseInt(date.substring(8, 10));
+            // Days from the civil calendar, counting years from March so that leap days fall at the end
+            if (m <= 2) y--;
+            final int era = (y >= 0 ? y : y - 399) / 400;
+            final int yearOfEra = y - era * 400;
+            final int dayOfYear = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+            final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            return era * 146097 + dayOfEra - 719468;
+        }
+        catch (NumberFormatException e)
+        {
+            return kMissing;
+        }
+    }
+
+    private static int parseInt(String value)
+    {
+        if (value == null || value.length() == 0)
+            return kMissing;
+        try
+        {
+            return (int) Double.parseDouble(value);
+        }
+        catch (NumberFormatException e)
+        {
+            return kMissing;
+        }
+    }
+
+    /**
+     * @return the day as "yyyy-mm-dd"
+     */
+    public static String formatEpochDay(int epochDay)
+    {
+        final int z = epochDay + 719468;
+        final int era = (z >= 0 ? z : z - 146096) / 146097;
+        final int dayOfEra = z - era * 146097;
+        final int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final int mp = (5 * dayOfYear + 2) / 153;
+        final int d = dayOfYear - (153 * mp + 2) / 5 + 1;
+        final int m = mp < 10 ? mp + 3 : mp - 9;
+        final int y = yearOfEra + era * 400 + (m <= 2 ? 1 : 0);
+        return String.format("%04d-%02d-%02d", y, m, d);
+    }
+
+    /**
+     * Collects a dump's records column by column, then writes them out as a snapshot.
+     */
+    static class Builder extends KivaQueryHandler
+    {
+        private final ColumnSpec[] _schema;
+        private final ColumnBuilder[] _columns;
+        private int _rowCount;
+
+        Builder(ColumnSpec[] schema)
+        {
+            _schema = schema;
+            _columns = new ColumnBuilder[schema.length];
+            for (int i = 0; i < schema.length; i++)
+                _columns[i] = new ColumnBuilder(schema[i]);
+        }
+
+        public Set<String> getFields()
+        {
+            final Set<String> fields = new HashSet<String>();
+            for (ColumnSpec spec : _schema)
+                fields.add(spec.path[0]);
+            return fields;
+        }
+
+        public void handle(JSONObject record)
+                throws Exception
+        {
+            for (ColumnBuilder column : _columns)
+                column.add(record);
+            _rowCount++;
+        }
+
+        void write(File snapshotFile, File zipFile)
+                throws Exception
+        {
+            final BinarySnapshot.Writer out = new BinarySnapshot.Writer(snapshotFile, kVersion, _rowCount);
+            try
+            {
+                out.writeSource(zipFile);
+                for (ColumnBuilder column : _columns)
+                    column.write(out, _rowCount);
+                out.commit();
+            }
+            catch (Exception e)
+            {
+                out.abandon();
+                throw e;
+            }
+        }
+    }
+
+    private static class ColumnBuilder
+    {
+        private final ColumnSpec _spec;
+        private int[] _ints = new int[1024];
+        private int _size;
+        private final Map<String, Integer> _codes = new HashMap<String, Integer>();
+        private final List<String> _dictionary = new ArrayList<String>();
+        private final ByteArrayOutputStream _text = new ByteArrayOutputStream();
+
+        ColumnBuilder(ColumnSpec spec)
+        {
+            _spec = spec;
+        }
+
+        private String getString(JSONObject record)
+        {
+            JSONObject parent = record;
+            for (int i = 0; i < _spec.path.length - 1 && parent != null; i++)
+                parent = parent.optJSONObject(_spec.path[i]);
+            if (parent == null || parent.isNull(_spec.path[_spec.path.length - 1]))
+                return null;
+            return parent.optString(_spec.path[_spec.path.length - 1]);
+        }
+
+        void add(JSONObject record)
+                throws Exception
+        {
+            final String value = getString(record);
+            final int entry;
+            switch (_spec.kind)
+            {
+                case Int:
+                    entry = parseInt(value);
+                    break;
+                case Day:
+                    entry = parseEpochDay(value);
+                    break;
+                case Dictionary:
+                    if (value == null)
+                        entry = -1;
+                    else
+                    {
+                        Integer code = _codes.get(value);
+                        if (code == null)
+                        {
+                            code = _dictionary.size();
+                            _codes.put(value, code);
+                            _dictionary.add(value);
+                        }
+                        entry = code;
+                    }
+                    break;
+                case Text:
+                    entry = _text.size();
+                    if (value != null)
+                        _text.write(value.getBytes(StringUtilsExt.kCHARSET_UTF8));
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+            append(entry);
+        }
+
+        private void append(int value)
+        {
+            if (_size == _ints.length)
+            {
+                final int[] grown = new int[_ints.length * 2];
+                System.arraycopy(_ints, 0, grown, 0, _size);
+                _ints = grown;
+            }
+            _ints[_size++] = value;
+        }
+
+        void write(BinarySnapshot.Writer out, int rowCount)
+                throws IOException
+        {
+            out.writeString(_spec.name);
+            if (_spec.kind == ColumnKind.Dictionary)
+            {
+                out.writeInt(_dictionary.size());
+                for (String value : _dictionary)
+                    out.writeString(value);
+            }
+            out.writeInts(_ints, rowCount);
+            if (_spec.kind == ColumnKind.Text)
+            {
+                // Closing offset, so each row's text ends where the next row's begins
+                out.writeInt(_text.size());
+                final byte[] text = _text.toByteArray();
+                out.writeBytes(text, 0, text.length);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.utils.BinarySnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Rows of a columnar snapshot sorted by the epoch day in one of its day columns, so that a date range is found by
+ * binary search rather than by reading the whole column.  Rows missing the date are left out.
+ */
+public class KivaDayIndex
+{
+    private static final int kVersion = 2;
+
+    private final int _size;
+    private final IntBuffer _days;
+    private final IntBuffer _rows;
+
+    private KivaDayIndex(BinarySnapshot.Reader in)
+    {
+        _size = in.getEntryCount();
+        _days = in.readSlice(_size * 4).asIntBuffer();
+        _rows = in.readSlice(_size * 4).asIntBuffer();
+    }
+
+    /**
+     * @return the index, or null if there is none, or it is of an older version or was built from a snapshot
+     * since replaced
+     */
+    public static KivaDayIndex open(File indexFile, File snapshotFile)
+            throws IOException
+    {
+        if (!indexFile.exists())
+            return null;
+        final BinarySnapshot.Reader in = new BinarySnapshot.Reader(indexFile);
+        if (in.getVersion() != kVersion || !in.readSource(snapshotFile))
+            return null;
+        return new KivaDayIndex(in);
+    }
+
+    static void build(KivaColumnarSnapshot.IntColumn column, int rowCount, File snapshotFile, File indexFile)
+            throws Exception
+    {
+        // Day in the high half and row in the low half, so sorting orders by day and then by row
+        final long[] entries = new long[rowCount];
+        int size = 0;
+        for (int row = 0; row < rowCount; row++)
+        {
+            final int day = column.get(row);
+            if (day != KivaColumnarSnapshot.kMissing)
+                entries[size++] = ((long) day << 32) | row;
+        }
+        Arrays.sort(entries, 0, size);
+
+        final int[] days = new int[size];
+        final int[] rows = new int[size];
+        for (int i = 0; i < size; i++)
+        {
+            days[i] = (int) (entries[i] >> 32);
+            rows[i] = (int) entries[i];
+        }
+
+        final BinarySnapshot.Writer out = new BinarySnapshot.Writer(indexFile, kVersion, size);
+        try
+        {
+            out.writeSource(snapshotFile);
+            out.writeInts(days, size);
+            out.writeInts(rows, size);
+            out.commit();
+        }
+        catch (Exception e)
+        {
+            out.abandon();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of rows with a date
+     */
+    public int size()
+    {
+        return _size;
+    }
+
+    /**
+     * @return the rows whose day lies in [minDay, maxDay]
+     */
+    public BitSet rowsBetween(int minDay, int maxDay)
+    {
+        final BitSet rows = new BitSet();
+        for (int i = firstAtLeast(minDay); i < _size && _days.get(i) <= maxDay; i++)
+            rows.set(_rows.get(i));
+        return rows;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bound is not a yyyy-mm-dd date
+     */
+    public BitSet rowsOnOrAfter(String yyyy_mm_dd)
+    {
+        final int day = KivaColumnarSnapshot.parseEpochDay(yyyy_mm_dd);
+        if (day == KivaColumnarSnapshot.kMissing)
+            throw new IllegalArgumentException("Not a yyyy-mm-dd date: " + yyyy_mm_dd);
+        return rowsBetween(day, Integer.MAX_VALUE);
+    }
+
+    private int firstAtLeast(int day)
+    {
+        int low = 0;
+        int high = _size;
+        while (low < high)
+        {
+            final int mid = (low + high) >>> 1;
+            if (_days.get(mid) < day)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
@@ -1,44 +1,395 @@
 package com.nfolkert.kiva.utils;
 
 import com.nfolkert.kiva.properties.KivaProperties;
+import com.nfolkert.utils.DaemonThreadFactory;
 import com.nfolkert.utils.FileUtils;
-import com.nfolkert.utils.ZipUtils;
 import com.nfolkert.exception.BaseException;
 import com.nfolkert.json.JSONObject;
+import com.nfolkert.utils.StringUtilsExt;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.apache.commons.io.IOUtils;
 
 /**
+ * Runs queries over a Kiva data snapshot archive.  The archive's central directory is read once to group its
+ * entries by query type, and each query then opens only the entries of its type, so running several queries over
+ * one dump never walks the entries of the others.  Queries added with addQuery run together, decoding each entry
+ * once for every handler of its type.  Entries are parsed straight from the inflating stream, and unless a parsed
+ * entry has to wait for its turn, one record at a time.  With more than one thread, entries are inflated and
+ * parsed in parallel.
  */
 public class KivaDump
 {
     public static File kDefaultKivaDirectory = new File(KivaProperties._kivaProps.getProperty("kivaDumpDir"));
+    /**
+     * Dumps are the zip files in the dump directory, which also holds the snapshots and indexes built from them
+     */
+    public static final Pattern kDumpFileName = Pattern.compile(".*\\.zip");
+    private static final int kDefaultThreads =
+            Integer.parseInt(KivaProperties._kivaProps.getProperty("kivaDumpThreads", "1"));
+
+    /**
+     * How a parallel query hands parsed entries to its handler
+     */
+    public enum Delivery
+    {
+        /**
+         * One entry at a time, in archive order, on the thread running the query; any handler may be used
+         */
+        EntryOrder,
+        /**
+         * On the worker threads as soon as each entry is parsed; the handler must be thread-safe
+         */
+        Unordered
+    }
+
     private File _zipFile;
+    private final int _threads;
+    private ZipFile _archive;
+    private Map<KivaQueryType, List<ZipEntry>> _entriesByType;
+    private final Map<KivaQueryType, List<KivaQueryHandler>> _queries =
+            new EnumMap<KivaQueryType, List<KivaQueryHandler>>(KivaQueryType.class);
 
     public KivaDump()
             throws Exception
     {
-        _zipFile = FileUtils.getLastModifiedFile(kDefaultKivaDirectory, null);
+        this(FileUtils.getLastModifiedFile(kDefaultKivaDirectory, kDumpFileName), kDefaultThreads);
+    }
+
+    public KivaDump(File zipFile)
+    {
+        this(zipFile, kDefaultThreads);
+    }
+
+    /**
+     * @param threads how many entries may be inflated and parsed at once; 1 reads every entry on the thread
+     * running the query
+     */
+    public KivaDump(File zipFile, int threads)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException("Must use at least one thread: " + threads);
+        _zipFile = zipFile;
+        _threads = threads;
+    }
+
+    public File getZipFile()
+    {
+        return _zipFile;
+    }
+
+    private synchronized Map<KivaQueryType, List<ZipEntry>> getEntriesByType()
+            throws IOException
+    {
+        if (_entriesByType == null)
+        {
+            _archive = new ZipFile(_zipFile);
+            final Map<KivaQueryType, List<ZipEntry>> entriesByType =
+                    new EnumMap<KivaQueryType, List<ZipEntry>>(KivaQueryType.class);
+            final Enumeration<? extends ZipEntry> entries = _archive.entries();
+            while (entries.hasMoreElements())
+            {
+                final ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) continue;
+                final KivaQueryType type = KivaQueryType.typeForZipEntry(entry.getName());
+                if (type == null) continue;
+                List<ZipEntry> ofType = entriesByType.get(type);
+                if (ofType == null)
+                {
+                    ofType = new ArrayList<ZipEntry>();
+                    entriesByType.put(type, ofType);
+                }
+                ofType.add(entry);
+            }
+            _entriesByType = entriesByType;
+        }
+        return _entriesByType;
+    }
+
+    /**
+     * @return the archive's entries holding results of the given type, in archive order
+     */
+    public List<ZipEntry> getEntries(KivaQueryType type)
+            throws IOException
+    {
+        final List<ZipEntry> entries = getEntriesByType().get(type);
+        return entries == null ? Collections.<ZipEntry>emptyList() : Collections.unmodifiableList(entries);
+    }
+
+    private Reader openEntry(ZipEntry entry)
+            throws Exception
+    {
+        final InputStream in = _archive.getInputStream(entry);
+        return new BufferedReader(new InputStreamReader(in, StringUtilsExt.kCHARSET_UTF8), 1 << 16);
+    }
+
+    /**
+     * Hands the entry's records to the handler as each one is parsed.
+     */
+    boolean streamEntry(KivaQueryType queryType, ZipEntry entry, KivaQueryHandler searcher)
+            throws Exception
+    {
+        final Reader in = openEntry(entry);
+        try
+        {
+            return searcher.handleStream(queryType, in);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
     }
 
     public void runQuery(final KivaQueryType queryType, final KivaQueryHandler searcher)
             throws BaseException
     {
-        ZipUtils.readZippedDirectory(_zipFile, new ZipUtils.ProcessZipFile() {
+        runQuery(queryType, searcher, Delivery.EntryOrder);
+    }
+
+    public void runQuery(final KivaQueryType queryType, final KivaQueryHandler searcher, Delivery delivery)
+            throws BaseException
+    {
+        try
+        {
+            final List<ZipEntry> entries = getEntries(queryType);
+            if (_threads == 1)
+            {
+                for (ZipEntry entry : entries)
+                    streamEntry(queryType, entry, searcher);
+            }
+            else if (delivery == Delivery.EntryOrder)
+                runOrdered(queryType, entries, searcher);
+            else
+                runUnordered(queryType, entries, searcher);
+        }
+        catch (BaseException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new BaseException(e);
+        }
+    }
+
+    /**
+     * Registers a handler to run on the next runQueries.
+     */
+    public synchronized void addQuery(KivaQueryType queryType, KivaQueryHandler searcher)
+    {
+        List<KivaQueryHandler> handlers = _queries.get(queryType);
+        if (handlers == null)
+        {
+            handlers = new ArrayList<KivaQueryHandler>();
+            _queries.put(queryType, handlers);
+        }
+        handlers.add(searcher);
+    }
+
+    public void runQueries()
+            throws BaseException
+    {
+        runQueries(Delivery.EntryOrder);
+    }
+
+    /**
+     * Runs every query added since the last runQueries, reading the entries of each type once and handing every
+     * record to each of that type's handlers in the order they were added.  Records are shared between the
+     * handlers, so handlers must not modify them.
+     */
+    public void runQueries(Delivery delivery)
+            throws BaseException
+    {
+        final Map<KivaQueryType, List<KivaQueryHandler>> queries;
+        synchronized (this)
+        {
+            queries = new EnumMap<KivaQueryType, List<KivaQueryHandler>>(_queries);
+            _queries.clear();
+        }
+        for (Map.Entry<KivaQueryType, List<KivaQueryHandler>> query : queries.entrySet())
+        {
+            final List<KivaQueryHandler> handlers = query.getValue();
+            runQuery(query.getKey(), handlers.size() == 1 ? handlers.get(0) : new FanOutHandler(handlers), delivery);
+        }
+    }
+
+    private static class FanOutHandler extends KivaQueryHandler
+    {
+        private final List<KivaQueryHandler> _handlers;
+
+        FanOutHandler(List<KivaQueryHandler> handlers)
+        {
+            _handlers = handlers;
+        }
+
+        public Set<String> getFields()
+        {
+            final Set<String> fields = new HashSet<String>();
+            for (KivaQueryHandler handler : _handlers)
+            {
+                final Set<String> handlerFields = handler.getFields();
+                if (handlerFields == null)
+                    return null;
+                fields.addAll(handlerFields);
+            }
+            return fields;
+        }
+
+        public void handle(JSONObject object)
+                throws Exception
+        {
+            for (KivaQueryHandler handler : _handlers)
+                handler.handle(object);
+        }
+    }
+
+    /**
+     * Keeps up to two entries per thread parsed or being parsed ahead of the handler.  Parsed entries wait in
+     * this window until every earlier entry has been handled, which bounds how many are held in memory.  Each
+     * entry's records are parsed whole here, since they cannot be handed over until their entry's turn comes, but
+     * hold only the handler's fields, as they would streamed.
+     */
+    private void runOrdered(KivaQueryType queryType, List<ZipEntry> entries, KivaQueryHandler searcher)
+            throws Exception
+    {
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(_threads, new DaemonThreadFactory("KivaDump-" + queryType.name()));
+        final Set<String> fields = searcher.getFields();
+        final LinkedList<Future<List<JSONObject>>> window = new LinkedList<Future<List<JSONObject>>>();
+        try
+        {
+            int next = 0;
+            while (next < entries.size() || !window.isEmpty())
+            {
+                while (next < entries.size() && window.size() < _threads * 2)
+                    window.addLast(executor.submit(new EntryRead(queryType, entries.get(next++), fields)));
+                for (JSONObject record : await(window.removeFirst()))
+                    searcher.handle(record);
+            }
+        }
+        finally
+        {
+            for (Future<List<JSONObject>> entry : window)
+                entry.cancel(true);
+            executor.shutdownNow();
+        }
+    }
 
-            public void processFile(String zipName, BufferedInputStream zippedFileStream)
-                    throws Exception
+    private void runUnordered(final KivaQueryType queryType, List<ZipEntry> entries, final KivaQueryHandler searcher)
+            throws Exception
+    {
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(_threads, new DaemonThreadFactory("KivaDump-" + queryType.name()));
+        final List<Future<Boolean>> handled = new ArrayList<Future<Boolean>>(entries.size());
+        try
+        {
+            for (final ZipEntry entry : entries)
             {
-                final KivaQueryType type = KivaQueryType.typeForZipEntry(zipName);
-                if (type == queryType)
+                handled.add(executor.submit(new Callable<Boolean>()
                 {
-                    JSONObject fileObject = new JSONObject(IOUtils.toString(zippedFileStream));
-                    searcher.handleFile(queryType, fileObject);
-                }
+                    public Boolean call()
+                            throws Exception
+                    {
+                        return streamEntry(queryType, entry, searcher);
+                    }
+                }));
             }
-        });
+            for (Future<Boolean> entry : handled)
+                await(entry);
+        }
+        finally
+        {
+            for (Future<Boolean> entry : handled)
+                entry.cancel(true);
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T await(Future<T> task)
+            throws Exception
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Parses an entry's records, keeping only the given fields, or all of them if null.
+     */
+    private class EntryRead extends KivaQueryHandler implements Callable<List<JSONObject>>
+    {
+        private final KivaQueryType _queryType;
+        private final ZipEntry _entry;
+        private final Set<String> _fields;
+        private final List<JSONObject> _records = new ArrayList<JSONObject>();
+
+        EntryRead(KivaQueryType queryType, ZipEntry entry, Set<String> fields)
+        {
+            _queryType = queryType;
+            _entry = entry;
+            _fields = fields;
+        }
+
+        public Set<String> getFields()
+        {
+            return _fields;
+        }
+
+        public void handle(JSONObject object)
+        {
+            _records.add(object);
+        }
+
+        public List<JSONObject> call()
+                throws Exception
+        {
+            streamEntry(_queryType, _entry, this);
+            return _records;
+        }
+    }
+
+    public synchronized void close()
+            throws IOException
+    {
+        if (_archive == null) return;
+        try
+        {
+            _archive.close();
+        }
+        finally
+        {
+            _archive = null;
+            _entriesByType = null;
+        }
     }
 }
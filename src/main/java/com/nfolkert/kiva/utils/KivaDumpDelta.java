@@ -0,0 +1,384 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.json.JSONArray;
+import com.nfolkert.json.JSONObject;
+import com.nfolkert.utils.BinarySnapshot;
+import com.nfolkert.utils.FileUtils;
+import com.nfolkert.utils.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compares two dumps record by record, keyed by lender_id for lenders and id for loans, and hands only the records
+ * that were added, changed or removed to handlers.  Records are compared by a 64-bit hash of their content with
+ * its fields in sorted order, so a dump that lists the same fields in another order changes nothing.  The hashes
+ * of each dump are saved next to it the first time it is compared, so next month's comparison against it only has
+ * to read the new dump; they are rebuilt if the dump is replaced.  Removed records are read back from the old dump
+ * only when they are asked for.  Records without an id are left out.
+ */
+public class KivaDumpDelta
+{
+    private static final int kVersion = 2;
+
+    private final KivaDump _from;
+    private final KivaDump _to;
+
+    public KivaDumpDelta(KivaDump from, KivaDump to)
+    {
+        _from = from;
+        _to = to;
+    }
+
+    /**
+     * @return the delta from the second most recent dump in the dump directory to the most recent one
+     */
+    public static KivaDumpDelta betweenLatestDumps()
+    {
+        final List<File> dumps = FileUtils.getFilesByLastModified(KivaDump.kDefaultKivaDirectory, KivaDump.kDumpFileName);
+        if (dumps.size() < 2)
+            throw new IllegalStateException("Need two dumps in " + KivaDump.kDefaultKivaDirectory + " to compare");
+        return new KivaDumpDelta(new KivaDump(dumps.get(1)), new KivaDump(dumps.get(0)));
+    }
+
+    static String getIdKey(KivaQueryType type)
+    {
+        if (type == KivaQueryType.Lenders)
+            return "lender_id";
+        else if (type == KivaQueryType.Loans)
+            return "id";
+        else
+            throw new UnsupportedOperationException("No dump delta of " + type.name());
+    }
+
+    /**
+     * @return the record's id, or null if it has none, in which case the record is left out of the delta
+     */
+    private static String getId(JSONObject record, String idKey)
+    {
+        final String id = record.optString(idKey, "");
+        return id.length() == 0 ? null : id;
+    }
+
+    /**
+     * @param added given records of the new dump whose id is not in the old one, or null
+     * @param changed given records of the new dump whose content differs from the old one's, or null
+     * @param removed given records of the old dump whose id is not in the new one, or null
+     */
+    public void run(KivaQueryType type, final KivaQueryHandler added, final KivaQueryHandler changed,
+                    KivaQueryHandler removed)
+            throws Exception
+    {
+        final String idKey = getIdKey(type);
+        final HashTable from = loadOrBuildHashes(_from, type);
+
+        final File toHashFile = getHashFile(_to.getZipFile(), type);
+        final HashTable to = HashTable.isCurrent(toHashFile, _to.getZipFile()) ? null :
+                new HashTable(from.size() + from.size() / 8 + 16);
+        _to.runQuery(type, new KivaQueryHandler()
+        {
+            public void handle(JSONObject record)
+                    throws Exception
+            {
+                final String id = getId(record, idKey);
+                if (id == null)
+                    return;
+                final long idHash = Hashing.fnv1a64(id);
+                final long content = hashContent(record);
+                if (to != null)
+                    to.put(idHash, content);
+
+                final int slot = from.find(idHash);
+                if (slot < 0)
+                {
+                    if (added != null)
+                        added.handle(record);
+                }
+                else
+                {
+                    from.markSeen(slot);
+                    if (from.getContent(slot) != content && changed != null)
+                        changed.handle(record);
+                }
+            }
+        });
+        if (to != null)
+            to.write(toHashFile, _to.getZipFile());
+
+        if (removed == null || from.getUnseenCount() == 0)
+            return;
+        final KivaQueryHandler removedHandler = removed;
+        _from.runQuery(type, new KivaQueryHandler()
+        {
+            public void handle(JSONObject record)
+                    throws Exception
+            {
+                final String id = getId(record, idKey);
+                if (id == null)
+                    return;
+                final int slot = from.find(Hashing.fnv1a64(id));
+                if (slot >= 0 && !from.isSeen(slot))
+                {
+                    from.markSeen(slot);
+                    removedHandler.handle(record);
+                }
+            }
+        });
+    }
+
+    public void close()
+            throws IOException
+    {
+        try
+        {
+            _from.close();
+        }
+        finally
+        {
+            _to.close();
+        }
+    }
+
+    static File getHashFile(File zipFile, KivaQueryType type)
+    {
+        return new File(zipFile.getPath() + "." + type.name() + ".hashes");
+    }
+
+    private static HashTable loadOrBuildHashes(KivaDump dump, KivaQueryType type)
+            throws Exception
+    {
+        final File hashFile = getHashFile(dump.getZipFile(), type);
+        final HashTable current = HashTable.readIfCurrent(hashFile, dump.getZipFile());
+        if (current != null)
+            return current;
+
+        final String idKey = getIdKey(type);
+        final HashTable hashes = new HashTable(1024);
+        dump.runQuery(type, new KivaQueryHandler()
+        {
+            public void handle(JSONObject record)
+                    throws Exception
+            {
+                final String id = getId(record, idKey);
+                if (id != null)
+                    hashes.put(Hashing.fnv1a64(id), hashContent(record));
+            }
+        });
+        hashes.write(hashFile, dump.getZipFile());
+        return hashes;
+    }
+
+    static long hashContent(JSONObject record)
+            throws Exception
+    {
+        final StringBuilder sb = new StringBuilder(256);
+        appendCanonical(record, sb);
+        return Hashing.fnv1a64(sb.toString());
+    }
+
+    /**
+     * Writes the value as JSON with every object's fields sorted by name
+     */
+    private static void appendCanonical(Object value, StringBuilder sb)
+            throws Exception
+    {
+        if (value instanceof JSONObject)
+        {
+            final JSONObject object = (JSONObject) value;
+            final List<String> keys = new ArrayList<String>(object.length());
+            for (Iterator<?> it = object.keys(); it.hasNext();)
+                keys.add((String) it.next());
+            Collections.sort(keys);
+            sb.append('{');
+            for (int i = 0; i < keys.size(); i++)
+            {
+                if (i > 0) sb.append(',');
+                JSONObject.quote(keys.get(i), sb);
+                sb.append(':');
+                appendCanonical(object.opt(keys.get(i)), sb);
+            }
+            sb.append('}');
+        }
+        else if (value instanceof JSONArray)
+        {
+            final JSONArray array = (JSONArray) value;
+            sb.append('[');
+            for (int i = 0; i < array.length(); i++)
+            {
+                if (i > 0) sb.append(',');
+                appendCanonical(array.opt(i), sb);
+            }
+            sb.append(']');
+        }
+        else if (value instanceof String)
+            JSONObject.quote((String) value, sb);
+        else
+            sb.append(value);
+    }
+
+    /**
+     * Open-addressing map from id hash to content hash, with a seen flag per entry, kept in primitive arrays so a
+     * dump's worth of records costs 17 bytes per slot.
+     */
+    static class HashTable
+    {
+        private long[] _ids;
+        private long[] _contents;
+        private byte[] _states;
+        private int _size;
+        private int _seen;
+
+        private static final byte kEmpty = 0;
+        private static final byte kPresent = 1;
+        private static final byte kSeen = 2;
+
+        HashTable(int expectedSize)
+        {
+            int capacity = 16;
+            while (capacity < expectedSize * 2)
+                capacity <<= 1;
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity)
+        {
+            _ids = new long[capacity];
+            _contents = new long[capacity];
+            _states = new byte[capacity];
+        }
+
+        int size()
+        {
+            return _size;
+        }
+
+        private int slotFor(long id)
+        {
+            // The ids are already hashes, so the low bits only need the high bits folded in
+            final int mask = _ids.length - 1;
+            int slot = (int) (id ^ (id >>> 32)) & mask;
+            while (_states[slot] != kEmpty && _ids[slot] != id)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        void put(long id, long content)
+        {
+            if ((_size + 1) * 2 > _ids.length)
+                grow();
+            final int slot = slotFor(id);
+            if (_states[slot] == kEmpty)
+            {
+                _states[slot] = kPresent;
+                _ids[slot] = id;
+                _size++;
+            }
+            _contents[slot] = content;
+        }
+
+        private void grow()
+        {
+            final long[] ids = _ids;
+            final long[] contents = _contents;
+            final byte[] states = _states;
+            allocate(ids.length * 2);
+            for (int i = 0; i < ids.length; i++)
+            {
+                if (states[i] == kEmpty) continue;
+                final int slot = slotFor(ids[i]);
+                _ids[slot] = ids[i];
+                _contents[slot] = contents[i];
+                _states[slot] = states[i];
+            }
+        }
+
+        /**
+         * @return the id's slot, or -1 if it is absent
+         */
+        int find(long id)
+        {
+            final int slot = slotFor(id);
+            return _states[slot] == kEmpty ? -1 : slot;
+        }
+
+        long getContent(int slot)
+        {
+            return _contents[slot];
+        }
+
+        boolean isSeen(int slot)
+        {
+            return _states[slot] == kSeen;
+        }
+
+        void markSeen(int slot)
+        {
+            if (_states[slot] == kPresent)
+            {
+                _states[slot] = kSeen;
+                _seen++;
+            }
+        }
+
+        int getUnseenCount()
+        {
+            return _size - _seen;
+        }
+
+        void write(File hashFile, File zipFile)
+                throws Exception
+        {
+            final BinarySnapshot.Writer out = new BinarySnapshot.Writer(hashFile, kVersion, _size);
+            try
+            {
+                out.writeSource(zipFile);
+                for (int i = 0; i < _ids.length; i++)
+                {
+                    if (_states[i] == kEmpty) continue;
+                    out.writeLong(_ids[i]);
+                    out.writeLong(_contents[i]);
+                }
+                out.commit();
+            }
+            catch (Exception e)
+            {
+                out.abandon();
+                throw e;
+            }
+        }
+
+        static boolean isCurrent(File hashFile, File zipFile)
+                throws IOException
+        {
+            if (!hashFile.exists())
+                return false;
+            final BinarySnapshot.Reader in = new BinarySnapshot.Reader(hashFile);
+            return in.getVersion() == kVersion && in.readSource(zipFile);
+        }
+
+        /**
+         * @return the hashes saved for the dump, or null if there are none, or they are of an older version or
+         * were saved for a dump since replaced
+         */
+        static HashTable readIfCurrent(File hashFile, File zipFile)
+                throws IOException
+        {
+            if (!hashFile.exists())
+                return null;
+            final BinarySnapshot.Reader in = new BinarySnapshot.Reader(hashFile);
+            if (in.getVersion() != kVersion || !in.readSource(zipFile))
+                return null;
+            final HashTable hashes = new HashTable(in.getEntryCount());
+            for (int i = 0; i < in.getEntryCount(); i++)
+            {
+                final long id = in.readLong();
+                hashes.put(id, in.readLong());
+            }
+            return hashes;
+        }
+    }
+}
@@ -1,6 +1,14 @@
 package com.nfolkert.kiva.utils;
 
 import com.nfolkert.json.JSONObject;
+import com.nfolkert.utils.DaemonThreadFactory;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -17,30 +25,57 @@ public class KivaFetcher
 
     private static final String api_key = "app_id=com.kivanewyork.query";
 
+    private final int _pagesInFlight;
+
+    public KivaFetcher()
+    {
+        this(1);
+    }
+
+    /**
+     * @param pagesInFlight how many pages of a paged query may be fetched ahead of the handler.  Pages are still
+     * handed to the handler one at a time and in page order; 1 fetches each page only once the previous one has
+     * been handled.
+     */
+    public KivaFetcher(int pagesInFlight)
+    {
+        if (pagesInFlight < 1)
+            throw new IllegalArgumentException("Must allow at least one page in flight: " + pagesInFlight);
+        _pagesInFlight = pagesInFlight;
+    }
+
+    private static abstract class PagedQuery
+    {
+        public abstract String urlForPage(int page);
+    }
+
     public void fetchLenders(KivaFetchHandler handler, int startAtPage)
             throws Exception
     {
-        for (int i = startAtPage ;; i++)
+        fetchPages(KivaQueryType.Lenders, new PagedQuery()
         {
-            final String url = gLendersRoot + "?country_code=us&sort_by=oldest&page=" + i + "&" + api_key;
-            JSONObject file = new JSONObject(KivaResultManager.getResultsAsString(KivaQueryType.Lenders, url));
-            boolean more = handler.handleFile(KivaQueryType.Lenders, file);
-            if (!more || !handler.continueQuery(file))
-                break;
-        }
+            public String urlForPage(int page)
+            {
+                return gLendersRoot + "?country_code=us&sort_by=oldest&page=" + page + "&" + api_key;
+            }
+        }, handler, startAtPage);
     }
 
     public void fetchNewestLenders(KivaFetchHandler handler, int startAtPage)
             throws Exception
     {
-        for (int i = startAtPage ;; i++)
+        fetchPages(KivaQueryType.NewestLenders, new PagedQuery()
         {
-            final String url = gNewestLendersRoot + "?page=" + i + "&" + api_key;
-            JSONObject file = new JSONObject(KivaResultManager.getResultsAsString(KivaQueryType.NewestLenders, url));
-            boolean more = handler.handleFile(KivaQueryType.NewestLenders, file);
-            if (!more || !handler.continueQuery(file))
-                break;
-        }
+            public String urlForPage(int page)
+            {
+                return newestLendersUrl(page);
+            }
+        }, handler, startAtPage);
+    }
+
+    static String newestLendersUrl(int page)
+    {
+        return gNewestLendersRoot + "?page=" + page + "&" + api_key;
     }
 
     public JSONObject getLenderById(String id)
@@ -65,6 +100,14 @@ public class KivaFetcher
         fetchLendersByIds(handler, id);
     }
 
+    /**
+     * @param ids at most 50 lender ids
+     */
+    static String lendersByIdsUrl(String... ids)
+    {
+        return gLenderByIDRoot + StringUtils.join(ids, ",") + ".json?" + api_key;
+    }
+
     public void fetchLendersByIds(KivaFetchHandler handler, String... ids)
             throws Exception
     {
@@ -73,9 +116,7 @@ public class KivaFetcher
             int numThisBatch = Math.min(50, ids.length-i);
             String[] theseIds = new String[numThisBatch];
             System.arraycopy(ids, i, theseIds, 0, theseIds.length);
-            String query = StringUtils.join(theseIds, ",") + ".json";
-            final String url = gLenderByIDRoot + query + "?" + api_key;
-            JSONObject file = new JSONObject(KivaResultManager.getResultsAsString(KivaQueryType.Lenders, url));
+            JSONObject file = KivaResultManager.getResultsAsJSON(KivaQueryType.Lenders, lendersByIdsUrl(theseIds));
             boolean more = handler.handleFile(KivaQueryType.Lenders, file);
             if (!more || !handler.continueQuery(file))
                 break;
@@ -86,22 +127,106 @@ public class KivaFetcher
             throws Exception
     {
         final String url = gRecentLendingActionsRoot + "?" + api_key;
-        JSONObject file = new JSONObject(KivaResultManager.getResultsAsString(KivaQueryType.RecentLendingActions, url));
+        JSONObject file = KivaResultManager.getResultsAsJSON(KivaQueryType.RecentLendingActions, url);
         handler.handleFile(KivaQueryType.RecentLendingActions, file);
     }
 
     public void fetchTeamLenders(KivaFetchHandler handler, int teamId)
             throws Exception
     {
-        for (int i = 1 ;; i++)
+        final String teamUrl = gTeamLendersRoot.replace("$", String.valueOf(teamId));
+        fetchPages(KivaQueryType.TeamLenders, new PagedQuery()
         {
-            final String teamUrl = gTeamLendersRoot.replace("$", String.valueOf(teamId));
-            final String url = teamUrl + "?sort_by=oldest&page=" + i + "&" + api_key;
-            JSONObject file = new JSONObject(KivaResultManager.getResultsAsString(KivaQueryType.TeamLenders, url));
-            boolean more = handler.handleFile(KivaQueryType.TeamLenders, file);
-            if (!more || !handler.continueQuery(file))
-                break;
+            public String urlForPage(int page)
+            {
+                return teamUrl + "?sort_by=oldest&page=" + page + "&" + api_key;
+            }
+        }, handler, 1);
+    }
+
+    private void fetchPages(KivaQueryType type, PagedQuery query, KivaFetchHandler handler, int startAtPage)
+            throws Exception
+    {
+        if (_pagesInFlight == 1)
+        {
+            for (int i = startAtPage ;; i++)
+            {
+                JSONObject file = KivaResultManager.getResultsAsJSON(type, query.urlForPage(i));
+                boolean more = handler.handleFile(type, file);
+                if (!more || !handler.continueQuery(file) || i >= getLastPage(file))
+                    break;
+            }
+            return;
+        }
+
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(_pagesInFlight, new DaemonThreadFactory("KivaFetcher-" + type.name()));
+        final LinkedList<Future<JSONObject>> inFlight = new LinkedList<Future<JSONObject>>();
+        try
+        {
+            // The first page says how many there are, so that nothing past the last one is prefetched
+            JSONObject file = KivaResultManager.getResultsAsJSON(type, query.urlForPage(startAtPage));
+            final int lastPage = getLastPage(file);
+            int nextPage = startAtPage + 1;
+            for (;;)
+            {
+                while (inFlight.size() < _pagesInFlight && nextPage <= lastPage)
+                    inFlight.addLast(executor.submit(new PageFetch(type, query.urlForPage(nextPage++))));
+                boolean more = handler.handleFile(type, file);
+                if (!more || !handler.continueQuery(file) || inFlight.isEmpty())
+                    break;
+                file = awaitPage(inFlight.removeFirst());
+            }
+        }
+        finally
+        {
+            for (Future<JSONObject> page: inFlight)
+                page.cancel(true);
+            executor.shutdownNow();
         }
     }
-}
 
+    /**
+     * @return the number of the last page, from the paging section of a page of results, or Integer.MAX_VALUE if
+     * it has none
+     */
+    private static int getLastPage(JSONObject file)
+    {
+        final JSONObject paging = file.optJSONObject("paging");
+        final int pages = paging == null ? -1 : paging.optInt("pages", -1);
+        return pages < 0 ? Integer.MAX_VALUE : pages;
+    }
+
+    private static JSONObject awaitPage(Future<JSONObject> page)
+            throws Exception
+    {
+        try
+        {
+            return page.get();
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw (Error) cause;
+        }
+    }
+
+    private static class PageFetch implements Callable<JSONObject>
+    {
+        private final KivaQueryType _type;
+        private final String _url;
+
+        PageFetch(KivaQueryType type, String url)
+        {
+            _type = type;
+            _url = url;
+        }
+
+        public JSONObject call()
+                throws Exception
+        {
+            return KivaResultManager.getResultsAsJSON(_type, _url);
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.utils.BinarySnapshot;
+import com.nfolkert.utils.FileUtilsExt;
+import com.nfolkert.utils.JSONUtils;
+import com.nfolkert.utils.MutationJournal;
+import com.nfolkert.utils.Pair;
+import com.nfolkert.utils.StringUtilsExt;
+import com.nfolkert.json.JSONArray;
+import com.nfolkert.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * One file per query under a directory per query type, named by a hash of the type and query and located
+ * through a JSON index.  Each change to the index is appended to a journal beside it as it happens; save() syncs
+ * the journal and only rewrites the whole index once the journal has grown, along with a binary snapshot of it
+ * that is loaded in place of the JSON on startup.  Lookups go through concurrent maps without locking; writes are
+ * serialized.
+ */
+public class KivaFileResultStore extends KivaResultStore
+{
+    private final File _indexFile;
+    private final File _cacheDir;
+    private final MutationJournal _journal;
+
+    private static final int kSnapshotVersion = 1;
+
+    /**
+     * Names of files this store writes: hashed names, and the sequentially numbered names of earlier versions
+     */
+    private static final Pattern kCacheFileName = Pattern.compile("[0-9a-f]{40}\\.json|queryCache_\\d+\\.json");
+    private static final String kTempSuffix = ".tmp";
+
+    final ConcurrentMap<KivaQueryType, ConcurrentMap<String, File>> _map =
+            new ConcurrentHashMap<KivaQueryType, ConcurrentMap<String, File>>();
+
+    /**
+     * Last read of each file in this process; files not read yet count as last used when they were written
+     */
+    private final ConcurrentMap<File, Long> _lastUsed = new ConcurrentHashMap<File, Long>();
+    private long _storedBytes = -1;
+
+    public KivaFileResultStore(File indexFile, File cacheDir)
+            throws Exception
+    {
+        _indexFile = indexFile;
+        _cacheDir = cacheDir;
+        _journal = new MutationJournal(new File(indexFile.getPath() + ".journal"));
+
+        final File snapshot = BinarySnapshot.getCurrent(_indexFile);
+        if ((snapshot == null || !readSnapshot(snapshot)) && _indexFile.exists())
+        {
+            final String jsonCache = FileUtilsExt.readFileAsString(_indexFile);
+            JSONArray jarr = new JSONArray(jsonCache);
+            for (int i = 0; i < jarr.length(); i++)
+            {
+                final JSONObject jobj = jarr.getJSONObject(i);
+                String queryURL = jobj.getString("query");
+                String type = jobj.getString("type");
+                String path = jobj.getString("file");
+                addQueryFile(KivaQueryType.valueOf(type), queryURL, new File(path));
+            }
+        }
+
+        for (JSONObject mutation : _journal.replay())
+            applyMutation(mutation);
+    }
+
+    /**
+     * Entries are grouped by type: the type name and its entry count, then the query and file path of each entry.
+     *
+     * @return false, with nothing loaded, if the snapshot could not be read
+     */
+    private boolean readSnapshot(File snapshot)
+    {
+        try
+        {
+            final BinarySnapshot.Reader in = new BinarySnapshot.Reader(snapshot);
+            if (in.getVersion() != kSnapshotVersion)
+                return false;
+            int remaining = in.getEntryCount();
+            while (remaining > 0)
+            {
+                final KivaQueryType type = KivaQueryType.valueOf(in.readString());
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    final String queryURL = in.readString();
+                    addQueryFile(type, queryURL, new File(in.readString()));
+                }
+                remaining -= count;
+            }
+            return true;
+        }
+        catch (Exception e)
+        {
+            System.out.println("Ignoring unreadable query cache snapshot " + snapshot + ": " + e);
+            _map.clear();
+            return false;
+        }
+    }
+
+    private void writeSnapshot()
+            throws Exception
+    {
+        final BinarySnapshot.Writer out =
+                new BinarySnapshot.Writer(BinarySnapshot.getSnapshotFile(_indexFile), kSnapshotVersion,
+                                          getEntryCount());
+        try
+        {
+            for (Map.Entry<KivaQueryType, ConcurrentMap<String, File>> typeEntry : _map.entrySet())
+            {
+                out.writeString(typeEntry.getKey().name());
+                out.writeInt(typeEntry.getValue().size());
+                for (Map.Entry<String, File> entry : typeEntry.getValue().entrySet())
+                {
+                    out.writeString(entry.getKey());
+                    out.writeString(entry.getValue().getAbsolutePath());
+                }
+            }
+            out.commit();
+        }
+        catch (Exception e)
+        {
+            out.abandon();
+            throw e;
+        }
+    }
+
+    private void applyMutation(JSONObject mutation)
+            throws Exception
+    {
+        final String op = mutation.getString("op");
+        final KivaQueryType type = KivaQueryType.valueOf(mutation.getString("type"));
+        if (op.equals("put"))
+            addQueryFile(type, mutation.getString("query"), new File(mutation.getString("file")));
+        else if (op.equals("remove"))
+        {
+            final Map<String, File> subMap = _map.get(type);
+            if (subMap != null)
+                subMap.remove(mutation.getString("query"));
+        }
+        else if (op.equals("clear"))
+            _map.remove(type);
+        else
+            throw new IllegalStateException("Unknown journal operation: " + op);
+    }
+
+    private void journal(String op, KivaQueryType type, String queryURL, File file)
+            throws Exception
+    {
+        final JSONObject mutation = new JSONObject();
+        mutation.put("op", op);
+        mutation.put("type", type.name());
+        if (queryURL != null)
+            mutation.put("query", queryURL);
+        if (file != null)
+            mutation.put("file", file.getAbsolutePath());
+        _journal.append(mutation);
+    }
+
+    private int getEntryCount()
+    {
+        int entries = 0;
+        for (Map<String, File> subMap : _map.values())
+            entries += subMap.size();
+        return entries;
+    }
+
+    private void addQueryFile(KivaQueryType type, String queryURL, File file)
+    {
+        ConcurrentMap<String, File> subMap = _map.get(type);
+        if (subMap == null)
+        {
+            final ConcurrentMap<String, File> newMap = new ConcurrentHashMap<String, File>();
+            subMap = _map.putIfAbsent(type, newMap);
+            if (subMap == null)
+                subMap = newMap;
+        }
+        subMap.put(queryURL, file);
+    }
+
+    private File getCachedFile(KivaQueryType type, String queryURL)
+    {
+        final Map<String, File> subMap = _map.get(type);
+        return subMap == null ? null : subMap.get(queryURL);
+    }
+
+    /**
+     * The file is a function of the type and query alone, so rewriting a query reuses its file and a name can
+     * never be handed to a different query, however the index was lost.  The first two hex digits of the hash
+     * pick a subdirectory so that no directory grows too large to list.
+     */
+    private File getCacheFileFor(KivaQueryType type, String queryURL)
+            throws Exception
+    {
+        final byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                (type.name() + " " + queryURL).getBytes(StringUtilsExt.kCHARSET_UTF8));
+        final StringBuilder name = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+        {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16));
+            name.append(Character.forDigit(b & 0xf, 16));
+        }
+        final File dir = new File(new File(_cacheDir, type.name()), name.substring(0, 2));
+        return new File(dir, name.append(".json").toString());
+    }
+
+    /**
+     * Looks up and opens the file without locking, so evictToSize or clear may delete it in between; that is
+     * treated as a miss, and the file is only marked as used if it is still indexed once read.
+     */
+    public byte[] read(KivaQueryType type, String queryURL)
+            throws Exception
+    {
+        final File file = getCachedFile(type, queryURL);
+        if (file == null)
+            return null;
+        final byte[] result;
+        try
+        {
+            result = FileUtilsExt.readFileAsBytes(file);
+        }
+        catch (FileNotFoundException e)
+        {
+            return null;
+        }
+        if (file.equals(getCachedFile(type, queryURL)))
+            _lastUsed.put(file, System.currentTimeMillis());
+        return result;
+    }
+
+    public long getWrittenMillis(KivaQueryType type, String queryURL)
+    {
+        final File file = getCachedFile(type, queryURL);
+        final long modified = file == null ? 0 : file.lastModified();
+        return modified == 0 ? -1 : modified;
+    }
+
+    public synchronized void write(KivaQueryType type, String queryURL, byte[] result)
+            throws Exception
+    {
+        File file = getCachedFile(type, queryURL);
+        final boolean isNew = file == null;
+        if (isNew)
+            file = getCacheFileFor(type, queryURL);
+        if (_storedBytes >= 0)
+            _storedBytes += result.length - file.length();
+
+        // Write then rename, then index: a crash leaves at worst an unindexed file for collectGarbage, never an
+        // indexed file holding part of a result
+        file.getParentFile().mkdirs();
+        final File tmp = File.createTempFile(file.getName(), kTempSuffix, file.getParentFile());
+        try
+        {
+            FileUtils.writeByteArrayToFile(tmp, result);
+            if (!tmp.renameTo(file))
+                FileUtilsExt.moveFile(tmp, file);
+        }
+        finally
+        {
+            tmp.delete();
+        }
+        addQueryFile(type, queryURL, file);
+        if (isNew)
+            journal("put", type, queryURL, file);
+    }
+
+    public synchronized long getStoredBytes()
+    {
+        if (_storedBytes < 0)
+        {
+            _storedBytes = 0;
+            for (Map<String, File> subMap : _map.values())
+                for (File file : subMap.values())
+                    _storedBytes += file.length();
+        }
+        return _storedBytes;
+    }
+
+    public synchronized int evictToSize(long maxBytes)
+            throws Exception
+    {
+        long storedBytes = getStoredBytes();
+        if (storedBytes <= maxBytes)
+            return 0;
+
+        final List<Pair<Long, Pair<KivaQueryType, String>>> byLastUse =
+                new ArrayList<Pair<Long, Pair<KivaQueryType, String>>>();
+        for (Map.Entry<KivaQueryType, ConcurrentMap<String, File>> typeEntry : _map.entrySet())
+        {
+            for (Map.Entry<String, File> entry : typeEntry.getValue().entrySet())
+            {
+                final Long lastUsed = _lastUsed.get(entry.getValue());
+                byLastUse.add(new Pair<Long, Pair<KivaQueryType, String>>(
+                        lastUsed == null ? entry.getValue().lastModified() : lastUsed,
+                        new Pair<KivaQueryType, String>(typeEntry.getKey(), entry.getKey())));
+            }
+        }
+        Collections.sort(byLastUse, new Comparator<Pair<Long, Pair<KivaQueryType, String>>>()
+        {
+            public int compare(Pair<Long, Pair<KivaQueryType, String>> o1, Pair<Long, Pair<KivaQueryType, String>> o2)
+            {
+                return o1.getHead().compareTo(o2.getHead());
+            }
+        });
+
+        // Unindex each file before deleting it, so a reader either misses it or has it open already
+        int evicted = 0;
+        for (Pair<Long, Pair<KivaQueryType, String>> entry : byLastUse)
+        {
+            if (storedBytes <= maxBytes) break;
+            final File file = _map.get(entry.getTail().getHead()).remove(entry.getTail().getTail());
+            if (file == null) continue;
+            journal("remove", entry.getTail().getHead(), entry.getTail().getTail(), null);
+            storedBytes -= file.length();
+            _lastUsed.remove(file);
+            file.delete();
+            evicted++;
+        }
+        _storedBytes = storedBytes;
+        return evicted;
+    }
+
+    public synchronized void clear(KivaQueryType type)
+            throws Exception
+    {
+        final Map<String, File> subMap = _map.remove(type);
+        journal("clear", type, null, null);
+        if (subMap != null)
+            for (File f: subMap.values())
+            {
+                _lastUsed.remove(f);
+                f.delete();
+            }
+        _storedBytes = -1;
+    }
+
+    /**
+     * Deletes files under the type directories that the index does not refer to: results written just before a
+     * crash, and temporary files from interrupted writes.
+     */
+    public synchronized long collectGarbage()
+    {
+        final Set<File> referenced = new HashSet<File>();
+        for (Map<String, File> subMap : _map.values())
+            for (File file : subMap.values())
+                referenced.add(file.getAbsoluteFile());
+
+        long reclaimed = 0;
+        for (KivaQueryType type : KivaQueryType.values())
+            reclaimed += collectGarbage(new File(_cacheDir, type.name()), referenced);
+        return reclaimed;
+    }
+
+    private long collectGarbage(File dir, Set<File> referenced)
+    {
+        final File[] files = dir.listFiles();
+        if (files == null)
+            return 0;
+        long reclaimed = 0;
+        for (File file : files)
+        {
+            if (file.isDirectory())
+                reclaimed += collectGarbage(file, referenced);
+            else if ((kCacheFileName.matcher(file.getName()).matches() || file.getName().endsWith(kTempSuffix)) &&
+                     !referenced.contains(file.getAbsoluteFile()))
+            {
+                final long length = file.length();
+                if (file.delete())
+                    reclaimed += length;
+            }
+        }
+        return reclaimed;
+    }
+
+    public synchronized void save()
+            throws Exception
+    {
+        if (BinarySnapshot.getCurrent(_indexFile) != null && !_journal.shouldCheckpoint(getEntryCount()))
+        {
+            _journal.sync();
+            return;
+        }
+
+        JSONArray jarr = new JSONArray();
+        for (KivaQueryType type: _map.keySet())
+        {
+            for (String query: _map.get(type).keySet())
+            {
+                JSONObject jobj = new JSONObject();
+                jobj.put("type", type.name());
+                jobj.put("query", query);
+                final File file = _map.get(type).get(query);
+                jobj.put("file", file.getAbsolutePath());
+                jarr.put(jobj);
+            }
+
+        }
+        JSONUtils.FormattedPrinter printer = new JSONUtils.FormattedPrinter(jarr);
+        FileUtilsExt.writeFileDurably(_indexFile, printer.formatPrint());
+        writeSnapshot();
+        _journal.reset();
+    }
+
+    @Override
+    public synchronized void close()
+            throws Exception
+    {
+        super.close();
+        _journal.close();
+    }
+
+    public synchronized void dump(boolean verbose)
+    {
+        System.out.println("Kiva query cache contains " + _map.size() + " entries:");
+        for (KivaQueryType type: _map.keySet())
+            System.out.println("\t" + type.name() + ": " + _map.get(type).size());
+
+        if (verbose)
+        {
+            for (KivaQueryType type : _map.keySet())
+            {
+                for (String query : _map.get(type).keySet())
+                {
+                    final File file = _map.get(type).get(query);
+                    System.out.println(query + "\t" + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+}
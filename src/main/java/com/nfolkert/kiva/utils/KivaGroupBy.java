@@ -0,0 +1,525 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.json.JSONObject;
+import com.nfolkert.utils.Hashing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Counts records by group, such as lenders by city or loans by month, along with any sums, minimums, maximums and
+ * distinct counts of their fields added before the query runs.  Groups are kept in an open-addressing table with
+ * their aggregates in primitive arrays, so each costs about 32 bytes plus its key, and 8 bytes per sum, minimum or
+ * maximum.  Distinct counts are HyperLogLog estimates whose registers start out sparse, at 4 bytes per register
+ * set plus a small array header, and become 2^precision dense bytes once a quarter of them are set, so a group of
+ * a few records stays within tens of bytes.  getGroups merges the partials of the threads that ran the query.
+ */
+public abstract class KivaGroupBy extends KivaPartialHandler<KivaGroupBy.Groups>
+{
+    public enum Aggregation
+    {
+        Sum,
+        Min,
+        Max,
+        Distinct
+    }
+
+    private static final int kDefaultPrecision = 8;
+
+    private final Set<String> _keyFields;
+    private final List<Aggregate> _aggregates = new ArrayList<Aggregate>();
+    private Aggregate[] _frozen;
+
+    /**
+     * @param keyFields the record fields getGroupKey reads, so a dump may skip the others while parsing; none if
+     * it may read any
+     */
+    protected KivaGroupBy(String... keyFields)
+    {
+        _keyFields = keyFields.length == 0 ? null : new HashSet<String>(Arrays.asList(keyFields));
+    }
+
+    /**
+     * @return the record's group, or null to leave the record out
+     */
+    protected abstract String getGroupKey(JSONObject record)
+            throws Exception;
+
+    /**
+     * Groups by the string value of a field, leaving out records where it is missing or empty.
+     */
+    public static KivaGroupBy byField(final String field)
+    {
+        return new KivaGroupBy(field)
+        {
+            protected String getGroupKey(JSONObject record)
+            {
+                final String key = record.optString(field, "");
+                return key.length() == 0 ? null : key;
+            }
+        };
+    }
+
+    /**
+     * Groups by the year and month, as in 2009-12, of a date field such as member_since or posted_date.
+     */
+    public static KivaGroupBy byMonth(final String dateField)
+    {
+        return new KivaGroupBy(dateField)
+        {
+            protected String getGroupKey(JSONObject record)
+            {
+                final String date = record.optString(dateField, "");
+                return date.length() < 7 ? null : date.substring(0, 7);
+            }
+        };
+    }
+
+    /**
+     * @return the aggregate's index, for the getters of Groups
+     */
+    public int addSum(String field)
+    {
+        return addAggregate(Aggregation.Sum, field, 0);
+    }
+
+    public int addMin(String field)
+    {
+        return addAggregate(Aggregation.Min, field, 0);
+    }
+
+    public int addMax(String field)
+    {
+        return addAggregate(Aggregation.Max, field, 0);
+    }
+
+    public int addDistinct(String field)
+    {
+        return addDistinct(field, kDefaultPrecision);
+    }
+
+    /**
+     * @param precision log2 of the registers kept per group, from 4 to 16; the estimate's standard error is about
+     * 1.04 / sqrt(2^precision), so 6.5% at the default of 8
+     */
+    public int addDistinct(String field, int precision)
+    {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("Precision must be from 4 to 16: " + precision);
+        return addAggregate(Aggregation.Distinct, field, precision);
+    }
+
+    private synchronized int addAggregate(Aggregation aggregation, String field, int precision)
+    {
+        if (_frozen != null)
+            throw new IllegalStateException("Aggregates must all be added before the first record");
+        _aggregates.add(new Aggregate(aggregation, field, precision));
+        return _aggregates.size() - 1;
+    }
+
+    private synchronized Aggregate[] getAggregates()
+    {
+        if (_frozen == null)
+            _frozen = _aggregates.toArray(new Aggregate[_aggregates.size()]);
+        return _frozen;
+    }
+
+    public Set<String> getFields()
+    {
+        if (_keyFields == null) return null;
+        final Set<String> fields = new HashSet<String>(_keyFields);
+        for (Aggregate aggregate : _aggregates)
+            fields.add(aggregate._field);
+        return fields;
+    }
+
+    public void handle(JSONObject record)
+            throws Exception
+    {
+        final String key = getGroupKey(record);
+        if (key == null) return;
+        getPartial().add(key, record);
+    }
+
+    protected Groups newPartial()
+    {
+        return new Groups(getAggregates());
+    }
+
+    /**
+     * @return every thread's partial merged into one, or an empty result if no record was grouped
+     */
+    public Groups getGroups()
+    {
+        final Groups groups = new Groups(getAggregates());
+        for (Groups partial : getPartials())
+            groups.merge(partial);
+        return groups;
+    }
+
+    private static class Aggregate
+    {
+        private final Aggregation _aggregation;
+        private final String _field;
+        private final int _precision;
+
+        Aggregate(Aggregation aggregation, String field, int precision)
+        {
+            _aggregation = aggregation;
+            _field = field;
+            _precision = precision;
+        }
+
+        boolean sameAs(Aggregate other)
+        {
+            return _aggregation == other._aggregation && _field.equals(other._field) &&
+                   _precision == other._precision;
+        }
+    }
+
+    /**
+     * The aggregates of each group, indexed from 0 to size() - 1 in the order the groups were first seen.
+     */
+    public static class Groups
+    {
+        private final Aggregate[] _aggregates;
+        private int[] _slots;
+        private long[] _hashes;
+        private String[] _keys;
+        private long[] _counts;
+        private final double[][] _values;
+        /**
+         * Per distinct count and group: null before any value, a sparse sketch, or dense registers
+         */
+        private final Object[][] _sketches;
+        private int _size;
+
+        Groups(Aggregate[] aggregates)
+        {
+            _aggregates = aggregates;
+            _slots = new int[32];
+            Arrays.fill(_slots, -1);
+            _hashes = new long[16];
+            _keys = new String[16];
+            _counts = new long[16];
+            _values = new double[aggregates.length][];
+            _sketches = new Object[aggregates.length][];
+            for (int i = 0; i < aggregates.length; i++)
+            {
+                if (aggregates[i]._aggregation == Aggregation.Distinct)
+                    _sketches[i] = new Object[16];
+                else
+                    _values[i] = newValues(aggregates[i]._aggregation, 16, 0);
+            }
+        }
+
+        private static double[] newValues(Aggregation aggregation, int capacity, int from)
+        {
+            final double[] values = new double[capacity];
+            if (aggregation == Aggregation.Min)
+                Arrays.fill(values, from, capacity, Double.POSITIVE_INFINITY);
+            else if (aggregation == Aggregation.Max)
+                Arrays.fill(values, from, capacity, Double.NEGATIVE_INFINITY);
+            return values;
+        }
+
+        public int size()
+        {
+            return _size;
+        }
+
+        private int slotFor(long hash, String key)
+        {
+            final int mask = _slots.length - 1;
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (_slots[slot] >= 0 && (_hashes[_slots[slot]] != hash || !_keys[_slots[slot]].equals(key)))
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        /**
+         * @return the group's index, or -1 if no record fell in it
+         */
+        public int find(String key)
+        {
+            return _slots[slotFor(Hashing.fnv1a64(key), key)];
+        }
+
+        private int findOrAdd(String key)
+        {
+            final long hash = Hashing.fnv1a64(key);
+            int slot = slotFor(hash, key);
+            if (_slots[slot] >= 0)
+                return _slots[slot];
+
+            if (_size == _keys.length)
+                growGroups();
+            if ((_size + 1) * 2 > _slots.length)
+            {
+                growSlots();
+                slot = slotFor(hash, key);
+            }
+            final int group = _size++;
+            _hashes[group] = hash;
+            _keys[group] = key;
+            _slots[slot] = group;
+            return group;
+        }
+
+        private void growGroups()
+        {
+            final int capacity = _keys.length * 2;
+            final long[] hashes = new long[capacity];
+            System.arraycopy(_hashes, 0, hashes, 0, _size);
+            _hashes = hashes;
+            final String[] keys = new String[capacity];
+            System.arraycopy(_keys, 0, keys, 0, _size);
+            _keys = keys;
+            final long[] counts = new long[capacity];
+            System.arraycopy(_counts, 0, counts, 0, _size);
+            _counts = counts;
+            for (int i = 0; i < _aggregates.length; i++)
+            {
+                if (_sketches[i] != null)
+                {
+                    final Object[] sketches = new Object[capacity];
+                    System.arraycopy(_sketches[i], 0, sketches, 0, _size);
+                    _sketches[i] = sketches;
+                }
+                else
+                {
+                    final double[] values = newValues(_aggregates[i]._aggregation, capacity, _size);
+                    System.arraycopy(_values[i], 0, values, 0, _size);
+                    _values[i] = values;
+                }
+            }
+        }
+
+        private void growSlots()
+        {
+            _slots = new int[_slots.length * 2];
+            Arrays.fill(_slots, -1);
+            for (int group = 0; group < _size; group++)
+                _slots[slotFor(_hashes[group], _keys[group])] = group;
+        }
+
+        void add(String key, JSONObject record)
+        {
+            final int group = findOrAdd(key);
+            _counts[group]++;
+            for (int i = 0; i < _aggregates.length; i++)
+            {
+                final Aggregate aggregate = _aggregates[i];
+                if (aggregate._aggregation == Aggregation.Distinct)
+                {
+                    final Object value = record.opt(aggregate._field);
+                    if (value != null && value != JSONObject.NULL)
+                        addDistinct(i, group, value.toString());
+                    continue;
+                }
+                final double value = record.optDouble(aggregate._field, Double.NaN);
+                if (Double.isNaN(value)) continue;
+                final double[] values = _values[i];
+                if (aggregate._aggregation == Aggregation.Sum)
+                    values[group] += value;
+                else if (aggregate._aggregation == Aggregation.Min)
+                    values[group] = Math.min(values[group], value);
+                else
+                    values[group] = Math.max(values[group], value);
+            }
+        }
+
+        private void addDistinct(int aggregate, int group, String value)
+        {
+            final int precision = _aggregates[aggregate]._precision;
+            final long hash = Hashing.mix64(Hashing.fnv1a64(value));
+            final int register = (int) (hash >>> (64 - precision));
+            // Rank of the first set bit after the register bits, capped by a sentinel bit past the end
+            final int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+            _sketches[aggregate][group] = addToSketch(_sketches[aggregate][group], precision, register, rank);
+        }
+
+        /**
+         * A sparse sketch is an int array holding its entry count, then (register << 8 | rank) entries sorted by
+         * register.  It becomes dense byte registers once more than a quarter of the registers are set, the point
+         * at which the dense form is no larger.
+         *
+         * @return the sketch with the register raised to at least the rank, which may be a new array
+         */
+        private static Object addToSketch(Object sketch, int precision, int register, int rank)
+        {
+            if (sketch instanceof byte[])
+            {
+                final byte[] dense = (byte[]) sketch;
+                if (dense[register] < rank)
+                    dense[register] = (byte) rank;
+                return dense;
+            }
+
+            int[] sparse = sketch == null ? new int[3] : (int[]) sketch;
+            final int size = sparse[0];
+            int low = 1;
+            int high = size;
+            while (low <= high)
+            {
+                final int mid = (low + high) >>> 1;
+                final int midRegister = sparse[mid] >>> 8;
+                if (midRegister < register)
+                    low = mid + 1;
+                else if (midRegister > register)
+                    high = mid - 1;
+                else
+                {
+                    if ((sparse[mid] & 0xff) < rank)
+                        sparse[mid] = register << 8 | rank;
+                    return sparse;
+                }
+            }
+
+            if (size + 1 > (1 << precision) / 4)
+            {
+                final byte[] dense = new byte[1 << precision];
+                for (int i = 1; i <= size; i++)
+                    dense[sparse[i] >>> 8] = (byte) (sparse[i] & 0xff);
+                dense[register] = (byte) rank;
+                return dense;
+            }
+            if (size + 1 == sparse.length)
+            {
+                final int[] grown = new int[sparse.length * 2];
+                System.arraycopy(sparse, 0, grown, 0, sparse.length);
+                sparse = grown;
+            }
+            System.arraycopy(sparse, low, sparse, low + 1, size + 1 - low);
+            sparse[low] = register << 8 | rank;
+            sparse[0] = size + 1;
+            return sparse;
+        }
+
+        /**
+         * Adds another partial's groups into these.  Both must come from the same aggregates.
+         */
+        public void merge(Groups other)
+        {
+            if (other._aggregates.length != _aggregates.length)
+                throw new IllegalArgumentException("Cannot merge groups of different aggregates");
+            for (int i = 0; i < _aggregates.length; i++)
+                if (!_aggregates[i].sameAs(other._aggregates[i]))
+                    throw new IllegalArgumentException("Cannot merge groups of different aggregates");
+
+            for (int from = 0; from < other._size; from++)
+            {
+                final int group = findOrAdd(other._keys[from]);
+                _counts[group] += other._counts[from];
+                for (int i = 0; i < _aggregates.length; i++)
+                {
+                    final Aggregation aggregation = _aggregates[i]._aggregation;
+                    if (aggregation == Aggregation.Distinct)
+                        _sketches[i][group] = mergeSketch(_sketches[i][group], other._sketches[i][from],
+                                                          _aggregates[i]._precision);
+                    else if (aggregation == Aggregation.Sum)
+                        _values[i][group] += other._values[i][from];
+                    else if (aggregation == Aggregation.Min)
+                        _values[i][group] = Math.min(_values[i][group], other._values[i][from]);
+                    else
+                        _values[i][group] = Math.max(_values[i][group], other._values[i][from]);
+                }
+            }
+        }
+
+        private static Object mergeSketch(Object sketch, Object other, int precision)
+        {
+            if (other instanceof byte[])
+            {
+                final byte[] registers = (byte[]) other;
+                for (int r = 0; r < registers.length; r++)
+                    if (registers[r] > 0)
+                        sketch = addToSketch(sketch, precision, r, registers[r]);
+            }
+            else if (other != null)
+            {
+                final int[] sparse = (int[]) other;
+                for (int i = 1; i <= sparse[0]; i++)
+                    sketch = addToSketch(sketch, precision, sparse[i] >>> 8, sparse[i] & 0xff);
+            }
+            return sketch;
+        }
+
+        public String getKey(int group)
+        {
+            return _keys[group];
+        }
+
+        /**
+         * @return how many records fell in the group
+         */
+        public long getCount(int group)
+        {
+            return _counts[group];
+        }
+
+        /**
+         * @return the group's sum, minimum or maximum for the aggregate; a sum of 0, or an infinite minimum or
+         * maximum, if no record in the group had the field
+         */
+        public double getValue(int group, int aggregate)
+        {
+            if (_values[aggregate] == null)
+                throw new IllegalArgumentException("Not a sum, minimum or maximum: " + aggregate);
+            return _values[aggregate][group];
+        }
+
+        /**
+         * @return the estimated number of distinct values of the aggregate's field in the group
+         */
+        public long getDistinct(int group, int aggregate)
+        {
+            if (_sketches[aggregate] == null)
+                throw new IllegalArgumentException("Not a distinct count: " + aggregate);
+            final int m = 1 << _aggregates[aggregate]._precision;
+            final Object sketch = _sketches[aggregate][group];
+            double sum = 0;
+            int zeros = m;
+            if (sketch instanceof byte[])
+            {
+                final byte[] registers = (byte[]) sketch;
+                zeros = 0;
+                for (byte register : registers)
+                {
+                    sum += 1.0 / (1L << register);
+                    if (register == 0) zeros++;
+                }
+            }
+            else if (sketch != null)
+            {
+                final int[] sparse = (int[]) sketch;
+                for (int i = 1; i <= sparse[0]; i++)
+                    sum += 1.0 / (1L << (sparse[i] & 0xff));
+                zeros = m - sparse[0];
+                sum += zeros;
+            }
+            else
+                return 0;
+            final double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+            final double estimate = alpha * m * m / sum;
+            // Small cardinalities are better estimated by how many registers are still empty
+            if (estimate <= 2.5 * m && zeros > 0)
+                return Math.round(m * Math.log((double) m / zeros));
+            return Math.round(estimate);
+        }
+
+        /**
+         * @return the group keys, sorted
+         */
+        public List<String> getSortedKeys()
+        {
+            final List<String> keys = new ArrayList<String>(Arrays.asList(_keys).subList(0, _size));
+            Collections.sort(keys);
+            return keys;
+        }
+    }
+}
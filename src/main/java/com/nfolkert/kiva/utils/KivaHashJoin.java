@@ -0,0 +1,679 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.json.JSONArray;
+import com.nfolkert.json.JSONObject;
+import com.nfolkert.kiva.properties.KivaProperties;
+import com.nfolkert.utils.Hashing;
+import com.nfolkert.utils.StringUtilsExt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Joins two streams of records on an id, such as lenders on lender_id with the lender_ids of loans_lenders.  The
+ * records of the build side are handed to getBuildHandler and held in a table keyed by a 64-bit hash of their id;
+ * the records of the probe side are then handed to getProbeHandler, and each is joined with the build records
+ * whose id is one of its own.  A probe key field may hold a single id or an array of them.
+ * <p/>
+ * When the build side outgrows the memory budget, it is split into partitions by id hash and written to a spill
+ * directory, and the probe side is partitioned the same way as it arrives; finish then joins each partition in
+ * turn.  Without a spill, joined records are handed over as each probe record arrives, in probe order; after one,
+ * they are handed over by finish, a partition at a time.  A partition whose build side still outgrows the budget
+ * is split again on further bits of the hash, so only the records of a single id outgrowing the budget on their
+ * own make the join fail, which it does with an IOException rather than running out of memory.
+ */
+public class KivaHashJoin
+{
+    private static final long kDefaultBudgetBytes =
+            Long.parseLong(KivaProperties._kivaProps.getProperty("kivaJoinMegabytes", "64")) << 20;
+    private static final File kDefaultSpillDirectory = new File(KivaProperties._kivaProps.getProperty(
+            "kivaJoinSpillDir", System.getProperty("java.io.tmpdir")));
+    private static final int kPartitionBits = 6;
+    private static final int kPartitions = 1 << kPartitionBits;
+    private static final int kMaxLevels = 64 / kPartitionBits;
+    /**
+     * Rough per-record cost of the table's arrays and the strings' headers, on top of their chars
+     */
+    private static final int kRecordOverheadBytes = 96;
+
+    public static abstract class JoinHandler
+    {
+        /**
+         * @param build a build record, parsed anew for each probe record it joins, so it may be modified
+         * @param probe a probe record, shared by every build record it joins
+         */
+        public abstract void handle(JSONObject build, JSONObject probe)
+                throws Exception;
+    }
+
+    private final String _buildKey;
+    private final String _probeKey;
+    private final JoinHandler _handler;
+    private final long _budgetBytes;
+    private final File _spillDirectory;
+    private Set<String> _buildFields;
+    private Set<String> _probeFields;
+
+    private RecordTable _table = new RecordTable(1024);
+    private long _tableBytes;
+    private File _spill;
+    private DataOutputStream[] _buildPartitions;
+    private DataOutputStream[] _probePartitions;
+    private final int[] _buildCounts = new int[kPartitions];
+    private final int[] _probeCounts = new int[kPartitions];
+    private boolean _probing;
+    private boolean _finished;
+
+    public KivaHashJoin(String buildKey, String probeKey, JoinHandler handler)
+    {
+        this(buildKey, probeKey, handler, kDefaultBudgetBytes, kDefaultSpillDirectory);
+    }
+
+    /**
+     * @param budgetBytes roughly how much memory the build side may take before it is spilled
+     * @param spillDirectory where spilled partitions are written; they are deleted by finish or close
+     */
+    public KivaHashJoin(String buildKey, String probeKey, JoinHandler handler, long budgetBytes, File spillDirectory)
+    {
+        _buildKey = buildKey;
+        _probeKey = probeKey;
+        _handler = handler;
+        _budgetBytes = budgetBytes;
+        _spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Limits the build records held to the given fields and the build key, which also lets a dump skip the
+     * others while parsing.
+     */
+    public void setBuildFields(String... fields)
+    {
+        _buildFields = withKey(fields, _buildKey);
+    }
+
+    /**
+     * Limits the probe records handed over to the given fields and the probe key.
+     */
+    public void setProbeFields(String... fields)
+    {
+        _probeFields = withKey(fields, _probeKey);
+    }
+
+    private static Set<String> withKey(String[] fields, String key)
+    {
+        final Set<String> withKey = new HashSet<String>(Arrays.asList(fields));
+        withKey.add(key);
+        return Collections.unmodifiableSet(withKey);
+    }
+
+    public KivaQueryHandler getBuildHandler()
+    {
+        return new KivaQueryHandler()
+        {
+            public Set<String> getFields()
+            {
+                return _buildFields;
+            }
+
+            public void handle(JSONObject record)
+                    throws Exception
+            {
+                addBuild(record);
+            }
+        };
+    }
+
+    public KivaQueryHandler getProbeHandler()
+    {
+        return new KivaQueryHandler()
+        {
+            public Set<String> getFields()
+            {
+                return _probeFields;
+            }
+
+            public void handle(JSONObject record)
+                    throws Exception
+            {
+                probe(record);
+            }
+        };
+    }
+
+    /**
+     * @return whether the build side outgrew the budget and was written to disk
+     */
+    public synchronized boolean isSpilled()
+    {
+        return _spill != null;
+    }
+
+    private synchronized void addBuild(JSONObject record)
+            throws Exception
+    {
+        if (_probing)
+            throw new IllegalStateException("Build records must all be added before the first probe record");
+        final Object id = record.opt(_buildKey);
+        if (id == null || id == JSONObject.NULL) return;
+        final String key = id.toString();
+        final long hash = Hashing.fnv1a64(key);
+        final String text = project(record, _buildFields).toString();
+
+        if (_spill != null)
+        {
+            writeByPartition(_buildPartitions, _buildCounts, 0, new long[] { hash }, new String[] { key }, 1, text);
+            return;
+        }
+        _table.add(hash, key, text);
+        _tableBytes += 2L * (key.length() + text.length()) + kRecordOverheadBytes;
+        if (_tableBytes > _budgetBytes)
+            spill();
+    }
+
+    private static JSONObject project(JSONObject record, Set<String> fields)
+            throws Exception
+    {
+        if (fields == null) return record;
+        return new JSONObject(record, fields.toArray(new String[fields.size()]));
+    }
+
+    private void spill()
+            throws Exception
+    {
+        _spill = File.createTempFile("kivaJoin", "", _spillDirectory);
+        if (!_spill.delete() || !_spill.mkdir())
+            throw new IOException("Could not create spill directory " + _spill);
+        _buildPartitions = openPartitions("build", null);
+        for (int i = 0; i < _table.size(); i++)
+            writeByPartition(_buildPartitions, _buildCounts, 0, new long[] { _table.getHash(i) },
+                             new String[] { _table.getKey(i) }, 1, _table.getRecord(i));
+        _table = null;
+        _tableBytes = 0;
+    }
+
+    private synchronized void probe(JSONObject record)
+            throws Exception
+    {
+        if (_finished)
+            throw new IllegalStateException("Join already finished");
+        if (!_probing)
+        {
+            _probing = true;
+            if (_spill != null)
+            {
+                closePartitions(_buildPartitions);
+                _buildPartitions = null;
+                _probePartitions = openPartitions("probe", null);
+            }
+        }
+
+        final String[] keys = getProbeKeys(record);
+        if (keys.length == 0) return;
+        final long[] hashes = new long[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            hashes[i] = Hashing.fnv1a64(keys[i]);
+        final JSONObject projected = project(record, _probeFields);
+
+        if (_spill == null)
+        {
+            join(_table, hashes, keys, keys.length, projected);
+            return;
+        }
+
+        writeByPartition(_probePartitions, _probeCounts, 0, hashes, keys, keys.length, projected.toString());
+    }
+
+    private String[] getProbeKeys(JSONObject record)
+    {
+        final Object ids = record.opt(_probeKey);
+        if (ids == null || ids == JSONObject.NULL) return new String[0];
+        if (!(ids instanceof JSONArray)) return new String[] { ids.toString() };
+
+        final JSONArray array = (JSONArray) ids;
+        final String[] keys = new String[array.length()];
+        int count = 0;
+        for (int i = 0; i < array.length(); i++)
+        {
+            final Object id = array.opt(i);
+            if (id != null && id != JSONObject.NULL)
+                keys[count++] = id.toString();
+        }
+        if (count == keys.length) return keys;
+        final String[] present = new String[count];
+        System.arraycopy(keys, 0, present, 0, count);
+        return present;
+    }
+
+    private void join(RecordTable table, long[] hashes, String[] keys, int count, JSONObject probe)
+            throws Exception
+    {
+        for (int i = 0; i < count; i++)
+            for (int record = table.find(hashes[i]); record >= 0; record = table.next(record))
+                if (table.getKey(record).equals(keys[i]))
+                    _handler.handle(new JSONObject(table.getRecord(record)), probe);
+    }
+
+    /**
+     * Joins the spilled partitions, if any, and deletes them.  Must be called once every probe record has been
+     * handed over.
+     */
+    public synchronized void finish()
+            throws Exception
+    {
+        if (_finished) return;
+        _finished = true;
+        if (_spill == null)
+        {
+            _table = null;
+            return;
+        }
+        try
+        {
+            closePartitions(_buildPartitions);
+            closePartitions(_probePartitions);
+            _buildPartitions = null;
+            _probePartitions = null;
+            for (int partition = 0; partition < kPartitions; partition++)
+                if (_buildCounts[partition] > 0 && _probeCounts[partition] > 0)
+                    joinPartition(String.valueOf(partition), _buildCounts[partition], _probeCounts[partition], 0);
+        }
+        finally
+        {
+            deleteSpill();
+        }
+    }
+
+    private void joinPartition(String partition, int buildCount, int probeCount, int level)
+            throws Exception
+    {
+        final RecordTable table = loadPartition(partition, buildCount, level);
+        if (table == null)
+        {
+            repartition(partition, buildCount, probeCount, level + 1);
+            return;
+        }
+
+        final DataInputStream in = openPartition("probe", partition);
+        try
+        {
+            for (int i = 0; i < probeCount; i++)
+            {
+                final int count = in.readInt();
+                final long[] hashes = new long[count];
+                final String[] keys = new String[count];
+                for (int j = 0; j < count; j++)
+                {
+                    hashes[j] = in.readLong();
+                    keys[j] = readString(in);
+                }
+                final String text = readString(in);
+                for (int j = 0; j < count; j++)
+                {
+                    // Only parse probe records that join something
+                    if (table.find(hashes[j]) < 0) continue;
+                    join(table, hashes, keys, count, new JSONObject(text));
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+        getPartitionFile("build", partition).delete();
+        getPartitionFile("probe", partition).delete();
+    }
+
+    /**
+     * @return the partition's build records, or null if they outgrow the budget and have to be split again
+     */
+    private RecordTable loadPartition(String partition, int buildCount, int level)
+            throws IOException
+    {
+        final RecordTable table = new RecordTable((int) Math.min(buildCount, _budgetBytes / kRecordOverheadBytes));
+        long bytes = 0;
+        boolean oneHash = true;
+        final DataInputStream in = openPartition("build", partition);
+        try
+        {
+            for (int i = 0; i < buildCount; i++)
+            {
+                in.readInt();
+                final long hash = in.readLong();
+                final String key = readString(in);
+                final String text = readString(in);
+                oneHash &= i == 0 || hash == table.getHash(0);
+                table.add(hash, key, text);
+                bytes += 2L * (key.length() + text.length()) + kRecordOverheadBytes;
+                if (bytes <= _budgetBytes)
+                    continue;
+
+                if (oneHash)
+                    throw new IOException("The build records with " + _buildKey + " " + key + " alone outgrow the " +
+                                          "join's budget of " + _budgetBytes + " bytes");
+                if (level + 1 >= kMaxLevels)
+                    throw new IOException("Join partition " + partition + " still outgrows the join's budget of " +
+                                          _budgetBytes + " bytes after splitting on every bit of the hash");
+                return null;
+            }
+            return table;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Splits both sides of a partition on the next bits of the hash, deleting the partition's files, and joins
+     * the pieces.
+     */
+    private void repartition(String partition, int buildCount, int probeCount, int level)
+            throws Exception
+    {
+        final int[] buildCounts = new int[kPartitions];
+        final int[] probeCounts = new int[kPartitions];
+        split("build", partition, buildCount, level, buildCounts);
+        split("probe", partition, probeCount, level, probeCounts);
+        for (int i = 0; i < kPartitions; i++)
+            if (buildCounts[i] > 0 && probeCounts[i] > 0)
+                joinPartition(partition + "." + i, buildCounts[i], probeCounts[i], level);
+    }
+
+    private void split(String side, String partition, int count, int level, int[] counts)
+            throws IOException
+    {
+        final DataOutputStream[] partitions = openPartitions(side, partition);
+        final DataInputStream in = openPartition(side, partition);
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                final int keyCount = in.readInt();
+                final long[] hashes = new long[keyCount];
+                final String[] keys = new String[keyCount];
+                for (int j = 0; j < keyCount; j++)
+                {
+                    hashes[j] = in.readLong();
+                    keys[j] = readString(in);
+                }
+                writeByPartition(partitions, counts, level, hashes, keys, keyCount, readString(in));
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+            closePartitions(partitions);
+        }
+        getPartitionFile(side, partition).delete();
+    }
+
+    /**
+     * Deletes any spilled partitions without finishing the join.
+     */
+    public synchronized void close()
+    {
+        _finished = true;
+        _table = null;
+        deleteSpill();
+    }
+
+    private void deleteSpill()
+    {
+        if (_spill == null) return;
+        closePartitions(_buildPartitions);
+        closePartitions(_probePartitions);
+        _buildPartitions = null;
+        _probePartitions = null;
+        final File[] files = _spill.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        _spill.delete();
+    }
+
+    /**
+     * @return the partition of the hash at the given level of splitting, which is the level'th group of bits from
+     * the top
+     */
+    private static int partitionOf(long hash, int level)
+    {
+        // The table slots on the low bits, so partition on the high ones, mixed since FNV's own are weak
+        return (int) (Hashing.mix64(hash) >>> (64 - kPartitionBits * (level + 1))) & (kPartitions - 1);
+    }
+
+    private File getPartitionFile(String side, String partition)
+    {
+        return new File(_spill, side + "." + partition);
+    }
+
+    /**
+     * @param parent the partition being split, or null for the partitions of the first level
+     */
+    private DataOutputStream[] openPartitions(String side, String parent)
+            throws IOException
+    {
+        final DataOutputStream[] partitions = new DataOutputStream[kPartitions];
+        try
+        {
+            for (int i = 0; i < kPartitions; i++)
+                partitions[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                        getPartitionFile(side, parent == null ? String.valueOf(i) : parent + "." + i)), 1 << 15));
+            return partitions;
+        }
+        catch (IOException e)
+        {
+            closePartitions(partitions);
+            throw e;
+        }
+    }
+
+    private DataInputStream openPartition(String side, String partition)
+            throws IOException
+    {
+        return new DataInputStream(new BufferedInputStream(
+                new FileInputStream(getPartitionFile(side, partition)), 1 << 16));
+    }
+
+    private static void closePartitions(DataOutputStream[] partitions)
+    {
+        if (partitions == null) return;
+        for (DataOutputStream partition : partitions)
+            IOUtils.closeQuietly(partition);
+    }
+
+    /**
+     * Writes the record once to each partition one of its keys falls in, with just the keys that fall in it.
+     */
+    private static void writeByPartition(DataOutputStream[] partitions, int[] counts, int level, long[] hashes,
+                                         String[] keys, int count, String record)
+            throws IOException
+    {
+        final long[] partitionHashes = new long[count];
+        final String[] partitionKeys = new String[count];
+        final boolean[] written = new boolean[count];
+        for (int i = 0; i < count; i++)
+        {
+            if (written[i]) continue;
+            final int partition = partitionOf(hashes[i], level);
+            int partitionCount = 0;
+            for (int j = i; j < count; j++)
+            {
+                if (written[j] || partitionOf(hashes[j], level) != partition) continue;
+                partitionHashes[partitionCount] = hashes[j];
+                partitionKeys[partitionCount++] = keys[j];
+                written[j] = true;
+            }
+            writeEntry(partitions[partition], partitionHashes, partitionKeys, partitionCount, record);
+            counts[partition]++;
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, long[] hashes, String[] keys, int count, String record)
+            throws IOException
+    {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++)
+        {
+            out.writeLong(hashes[i]);
+            writeString(out, keys[i]);
+        }
+        writeString(out, record);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException
+    {
+        final byte[] bytes = s.getBytes(StringUtilsExt.kCHARSET_UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in)
+            throws IOException
+    {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StringUtilsExt.kCHARSET_UTF8);
+    }
+
+    /**
+     * Build records by id hash: an open-addressing table from hash to the first record with it, and the records'
+     * hashes, ids and text in parallel arrays chained through next.  Distinct ids sharing a hash share a chain, so
+     * matches are checked against the id itself.
+     */
+    static class RecordTable
+    {
+        private long[] _slotHashes;
+        private int[] _slotRecords;
+        private long[] _hashes;
+        private String[] _keys;
+        private String[] _records;
+        private int[] _next;
+        private int _size;
+        private int _slotsUsed;
+
+        RecordTable(int expectedSize)
+        {
+            int capacity = 16;
+            while (capacity < expectedSize * 2)
+                capacity <<= 1;
+            _slotHashes = new long[capacity];
+            _slotRecords = new int[capacity];
+            Arrays.fill(_slotRecords, -1);
+            final int records = Math.max(expectedSize, 16);
+            _hashes = new long[records];
+            _keys = new String[records];
+            _records = new String[records];
+            _next = new int[records];
+        }
+
+        int size()
+        {
+            return _size;
+        }
+
+        private int slotFor(long hash)
+        {
+            final int mask = _slotHashes.length - 1;
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (_slotRecords[slot] >= 0 && _slotHashes[slot] != hash)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        void add(long hash, String key, String record)
+        {
+            if (_size == _hashes.length)
+            {
+                final int capacity = _size * 2;
+                final long[] hashes = new long[capacity];
+                System.arraycopy(_hashes, 0, hashes, 0, _size);
+                _hashes = hashes;
+                final String[] keys = new String[capacity];
+                System.arraycopy(_keys, 0, keys, 0, _size);
+                _keys = keys;
+                final String[] records = new String[capacity];
+                System.arraycopy(_records, 0, records, 0, _size);
+                _records = records;
+                final int[] next = new int[capacity];
+                System.arraycopy(_next, 0, next, 0, _size);
+                _next = next;
+            }
+            if ((_slotsUsed + 1) * 2 > _slotHashes.length)
+                growSlots();
+
+            final int index = _size++;
+            _hashes[index] = hash;
+            _keys[index] = key;
+            _records[index] = record;
+            final int slot = slotFor(hash);
+            if (_slotRecords[slot] < 0)
+            {
+                _slotHashes[slot] = hash;
+                _slotsUsed++;
+            }
+            _next[index] = _slotRecords[slot];
+            _slotRecords[slot] = index;
+        }
+
+        private void growSlots()
+        {
+            final long[] slotHashes = _slotHashes;
+            final int[] slotRecords = _slotRecords;
+            _slotHashes = new long[slotHashes.length * 2];
+            _slotRecords = new int[slotRecords.length * 2];
+            Arrays.fill(_slotRecords, -1);
+            for (int i = 0; i < slotHashes.length; i++)
+            {
+                if (slotRecords[i] < 0) continue;
+                final int slot = slotFor(slotHashes[i]);
+                _slotHashes[slot] = slotHashes[i];
+                _slotRecords[slot] = slotRecords[i];
+            }
+        }
+
+        /**
+         * @return the most recently added record with the hash, or -1 if there is none
+         */
+        int find(long hash)
+        {
+            return _slotRecords[slotFor(hash)];
+        }
+
+        /**
+         * @return the record added before this one with the same hash, or -1 if there is none
+         */
+        int next(int record)
+        {
+            return _next[record];
+        }
+
+        long getHash(int record)
+        {
+            return _hashes[record];
+        }
+
+        String getKey(int record)
+        {
+            return _keys[record];
+        }
+
+        String getRecord(int record)
+        {
+            return _records[record];
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the most common values of a query, such as whereabouts strings, in one pass with k counters, using the
+ * Space-Saving algorithm: once every counter is taken, a new value replaces the value with the lowest count and
+ * inherits that count as its error.  Any value occurring more than n/k times among n records is sure to be kept,
+ * and each count overestimates the true one by at most its error.  getHeavyHitters merges the summaries of the
+ * threads that ran the query.
+ */
+public abstract class KivaHeavyHitters extends KivaPartialHandler<KivaHeavyHitters.Summary>
+{
+    private final int _k;
+    private final Set<String> _fields;
+
+    /**
+     * @param fields the record fields getItem reads; none if it may read any
+     */
+    protected KivaHeavyHitters(int k, String... fields)
+    {
+        if (k < 1)
+            throw new IllegalArgumentException("Must keep at least one counter: " + k);
+        _k = k;
+        _fields = fields.length == 0 ? null : new HashSet<String>(Arrays.asList(fields));
+    }
+
+    /**
+     * @return the value to count for the record, or null to leave the record out
+     */
+    protected abstract String getItem(JSONObject record)
+            throws Exception;
+
+    /**
+     * Counts the string values of a field, leaving out records where it is missing or empty.
+     */
+    public static KivaHeavyHitters byField(int k, final String field)
+    {
+        return new KivaHeavyHitters(k, field)
+        {
+            protected String getItem(JSONObject record)
+            {
+                final String item = record.optString(field, "");
+                return item.length() == 0 ? null : item;
+            }
+        };
+    }
+
+    public Set<String> getFields()
+    {
+        return _fields;
+    }
+
+    public void handle(JSONObject record)
+            throws Exception
+    {
+        final String item = getItem(record);
+        if (item == null) return;
+        getPartial().add(item);
+    }
+
+    protected Summary newPartial()
+    {
+        return new Summary(_k);
+    }
+
+    /**
+     * @return the counted values, most common first
+     */
+    public List<Counter> getHeavyHitters()
+    {
+        return getSummary().getCounters();
+    }
+
+    /**
+     * @return every thread's summary merged into one, for merging with the summaries of other queries
+     */
+    public Summary getSummary()
+    {
+        Summary summary = new Summary(_k);
+        for (Summary partial : getPartials())
+            summary = summary.merge(partial);
+        return summary;
+    }
+
+    public static class Counter
+    {
+        private final String _item;
+        private final long _count;
+        private final long _error;
+
+        Counter(String item, long count, long error)
+        {
+            _item = item;
+            _count = count;
+            _error = error;
+        }
+
+        public String getItem()
+        {
+            return _item;
+        }
+
+        /**
+         * @return an upper bound on how many times the value occurred
+         */
+        public long getCount()
+        {
+            return _count;
+        }
+
+        /**
+         * @return how much the count may overestimate by
+         */
+        public long getError()
+        {
+            return _error;
+        }
+
+        /**
+         * @return a lower bound on how many times the value occurred
+         */
+        public long getGuaranteedCount()
+        {
+            return _count - _error;
+        }
+
+        public String toString()
+        {
+            return _item + "\t" + _count + "\t" + _error;
+        }
+    }
+
+    /**
+     * The k counters of a Space-Saving pass, kept in a min-heap by count with each value's heap position, so a
+     * record costs a map lookup and a sift of O(log k).
+     */
+    public static class Summary
+    {
+        private final String[] _items;
+        private final long[] _counts;
+        private final long[] _errors;
+        private final Map<String, Integer> _positions;
+        private long _total;
+        private int _size;
+
+        public Summary(int k)
+        {
+            _items = new String[k];
+            _counts = new long[k];
+            _errors = new long[k];
+            _positions = new HashMap<String, Integer>(k * 2);
+        }
+
+        public int size()
+        {
+            return _size;
+        }
+
+        /**
+         * @return how many values were counted, including those no longer kept
+         */
+        public long getTotal()
+        {
+            return _total;
+        }
+
+        public void add(String item)
+        {
+            add(item, 1, 0);
+        }
+
+        private void add(String item, long count, long error)
+        {
+            _total += count;
+            final Integer position = _positions.get(item);
+            if (position != null)
+            {
+                _counts[position] += count;
+                _errors[position] += error;
+                siftDown(position);
+            }
+            else if (_size < _items.length)
+            {
+                final int i = _size++;
+                set(i, item, count, error);
+                siftUp(i);
+            }
+            else
+            {
+                // Replace the least counted value, which is always at the root
+                final long min = _counts[0];
+                _positions.remove(_items[0]);
+                set(0, item, min + count, min + error);
+                siftDown(0);
+            }
+        }
+
+        private long getMinCount()
+        {
+            return _size < _items.length ? 0 : _counts[0];
+        }
+
+        private void set(int i, String item, long count, long error)
+        {
+            _items[i] = item;
+            _counts[i] = count;
+            _errors[i] = error;
+            _positions.put(item, i);
+        }
+
+        private void swap(int i, int j)
+        {
+            final String item = _items[i];
+            final long count = _counts[i];
+            final long error = _errors[i];
+            set(i, _items[j], _counts[j], _errors[j]);
+            set(j, item, count, error);
+        }
+
+        private void siftUp(int i)
+        {
+            while (i > 0 && _counts[(i - 1) / 2] > _counts[i])
+            {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+
+        private void siftDown(int i)
+        {
+            for (;;)
+            {
+                int child = 2 * i + 1;
+                if (child >= _size) return;
+                if (child + 1 < _size && _counts[child + 1] < _counts[child])
+                    child++;
+                if (_counts[child] >= _counts[i]) return;
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        /**
+         * Combines two summaries into a new one of this one's size.  A value missing from a full summary may have
+         * occurred as often as that summary's lowest count, so that count is added to its count and error.
+         */
+        public Summary merge(Summary other)
+        {
+            final Map<String, long[]> combined = new HashMap<String, long[]>();
+            final long min = getMinCount();
+            final long otherMin = other.getMinCount();
+            for (int i = 0; i < _size; i++)
+                combined.put(_items[i], new long[] { _counts[i] + otherMin, _errors[i] + otherMin });
+            for (int i = 0; i < other._size; i++)
+            {
+                final long[] counter = combined.get(other._items[i]);
+                if (counter == null)
+                    combined.put(other._items[i], new long[] { other._counts[i] + min, other._errors[i] + min });
+                else
+                {
+                    counter[0] += other._counts[i] - otherMin;
+                    counter[1] += other._errors[i] - otherMin;
+                }
+            }
+
+            final List<Map.Entry<String, long[]>> byCount = new ArrayList<Map.Entry<String, long[]>>(combined.entrySet());
+            Collections.sort(byCount, new Comparator<Map.Entry<String, long[]>>()
+            {
+                public int compare(Map.Entry<String, long[]> o1, Map.Entry<String, long[]> o2)
+                {
+                    return o1.getValue()[0] < o2.getValue()[0] ? 1 : o1.getValue()[0] > o2.getValue()[0] ? -1 : 0;
+                }
+            });
+            final Summary merged = new Summary(_items.length);
+            for (int i = 0; i < byCount.size() && i < _items.length; i++)
+            {
+                final long[] counter = byCount.get(i).getValue();
+                merged.set(merged._size, byCount.get(i).getKey(), counter[0], counter[1]);
+                merged.siftUp(merged._size++);
+            }
+            merged._total = _total + other._total;
+            return merged;
+        }
+
+        /**
+         * @return the counters, highest count first
+         */
+        public List<Counter> getCounters()
+        {
+            final List<Counter> counters = new ArrayList<Counter>(_size);
+            for (int i = 0; i < _size; i++)
+                counters.add(new Counter(_items[i], _counts[i], _errors[i]));
+            Collections.sort(counters, new Comparator<Counter>()
+            {
+                public int compare(Counter o1, Counter o2)
+                {
+                    return o1._count < o2._count ? 1 : o1._count > o2._count ? -1 : 0;
+                }
+            });
+            return counters;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.json.JSONArray;
+import com.nfolkert.json.JSONObject;
+import com.nfolkert.utils.DaemonThreadFactory;
+import com.nfolkert.utils.StringUtilsExt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces single lender lookups into fetchLendersByIds requests.  A batch is sent as soon as it holds
+ * kMaxBatchSize ids, or once the oldest pending id has waited for the linger time.  All requests are made from
+ * a single background thread, which is also where per-lender handlers are called.
+ * <p/>
+ * Results are cached per lender, under the same URL as a single-lender fetchLendersByIds, so a lender cached by
+ * an earlier run or an earlier batch is answered without joining a batch.  Batch URLs themselves depend on timing
+ * and are never cached.
+ */
+public class KivaLenderBatcher
+{
+    public static final int kMaxBatchSize = 50;
+    public static final long kDefaultLingerMillis = 250;
+
+    private final long _lingerMillis;
+    private final ScheduledExecutorService _executor =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("KivaLenderBatcher"));
+
+    private final Map<String, List<PendingLender>> _pending = new LinkedHashMap<String, List<PendingLender>>();
+    private boolean _lingerScheduled;
+
+    public KivaLenderBatcher()
+    {
+        this(kDefaultLingerMillis);
+    }
+
+    public KivaLenderBatcher(long lingerMillis)
+    {
+        _lingerMillis = lingerMillis;
+    }
+
+    public Future<JSONObject> submit(String lenderId)
+    {
+        return submit(lenderId, null);
+    }
+
+    /**
+     * @param optionalHandler called on the batcher thread with the lender once it arrives; a lender that Kiva
+     * does not return completes the future with null and is not passed to the handler
+     */
+    public Future<JSONObject> submit(String lenderId, KivaQueryHandler optionalHandler)
+    {
+        final PendingLender pending = new PendingLender(optionalHandler);
+        final JSONObject cached = getCachedLender(lenderId);
+        if (cached != null)
+        {
+            _executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    pending.complete(cached);
+                }
+            });
+            return pending;
+        }
+        synchronized (this)
+        {
+            List<PendingLender> waiting = _pending.get(lenderId);
+            if (waiting == null)
+            {
+                waiting = new ArrayList<PendingLender>(1);
+                _pending.put(lenderId, waiting);
+            }
+            waiting.add(pending);
+
+            if (_pending.size() >= kMaxBatchSize)
+                _executor.execute(new Flush(false));
+            else if (!_lingerScheduled)
+            {
+                _lingerScheduled = true;
+                _executor.schedule(new Flush(true), _lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Sends everything submitted so far and waits for it to be routed back.
+     */
+    public void flush()
+            throws Exception
+    {
+        try
+        {
+            _executor.submit(new Flush(true)).get();
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw (Error) cause;
+        }
+    }
+
+    public void close()
+            throws Exception
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            _executor.shutdown();
+        }
+    }
+
+    private synchronized Map<String, List<PendingLender>> takeBatch(boolean partial)
+    {
+        if (_pending.isEmpty() || (!partial && _pending.size() < kMaxBatchSize))
+            return null;
+
+        final Map<String, List<PendingLender>> batch = new LinkedHashMap<String, List<PendingLender>>();
+        for (Iterator<Map.Entry<String, List<PendingLender>>> it = _pending.entrySet().iterator();
+             it.hasNext() && batch.size() < kMaxBatchSize;)
+        {
+            final Map.Entry<String, List<PendingLender>> entry = it.next();
+            batch.put(entry.getKey(), entry.getValue());
+            it.remove();
+        }
+        return batch;
+    }
+
+    private static JSONObject getCachedLender(String lenderId)
+    {
+        try
+        {
+            final JSONObject page = KivaResultManager.getCachedResultsAsJSON(
+                    KivaQueryType.Lenders, KivaFetcher.lendersByIdsUrl(lenderId));
+            final JSONArray lenders = page == null ? null : page.optJSONArray(
+                    KivaQueryHandler.getRecordsKey(KivaQueryType.Lenders));
+            return lenders == null || lenders.length() == 0 ? null : lenders.getJSONObject(0);
+        }
+        catch (Exception e)
+        {
+            // An unreadable cache entry is fetched again like a missing one
+            return null;
+        }
+    }
+
+    private void send(Map<String, List<PendingLender>> batch)
+    {
+        try
+        {
+            final String[] ids = batch.keySet().toArray(new String[batch.size()]);
+            Arrays.sort(ids);
+            final JSONObject page = KivaResultManager.queryUncachedAsJSON(
+                    KivaQueryType.Lenders, KivaFetcher.lendersByIdsUrl(ids));
+            final JSONArray lenders = page.getJSONArray(KivaQueryHandler.getRecordsKey(KivaQueryType.Lenders));
+            for (int i = 0; i < lenders.length(); i++)
+            {
+                final JSONObject lender = lenders.getJSONObject(i);
+                final String id = lender.optString("lender_id");
+                KivaResultManager.putResults(KivaQueryType.Lenders, KivaFetcher.lendersByIdsUrl(id),
+                                             getLenderPage(lender));
+                final List<PendingLender> waiting = batch.remove(id);
+                if (waiting != null)
+                    for (PendingLender pending : waiting)
+                        pending.complete(lender);
+            }
+
+            for (List<PendingLender> notReturned : batch.values())
+                for (PendingLender pending : notReturned)
+                    pending.complete(null);
+        }
+        catch (Exception e)
+        {
+            for (List<PendingLender> failed : batch.values())
+                for (PendingLender pending : failed)
+                    pending.fail(e);
+        }
+    }
+
+    /**
+     * @return the lender as the response body of a single-lender query
+     */
+    private static byte[] getLenderPage(JSONObject lender)
+            throws Exception
+    {
+        final JSONArray lenders = new JSONArray();
+        lenders.put(lender);
+        final JSONObject page = new JSONObject();
+        page.put(KivaQueryHandler.getRecordsKey(KivaQueryType.Lenders), lenders);
+        return page.toString().getBytes(StringUtilsExt.kCHARSET_UTF8);
+    }
+
+    private class Flush implements Runnable
+    {
+        private final boolean _partial;
+
+        Flush(boolean partial)
+        {
+            _partial = partial;
+        }
+
+        public void run()
+        {
+            if (_partial)
+                synchronized (KivaLenderBatcher.this)
+                {
+                    _lingerScheduled = false;
+                }
+
+            Map<String, List<PendingLender>> batch;
+            while ((batch = takeBatch(_partial)) != null)
+                send(batch);
+        }
+    }
+
+    private static class PendingLender implements Future<JSONObject>
+    {
+        private final KivaQueryHandler _handler;
+        private final CountDownLatch _done = new CountDownLatch(1);
+        private JSONObject _lender;
+        private Exception _failure;
+
+        PendingLender(KivaQueryHandler handler)
+        {
+            _handler = handler;
+        }
+
+        void complete(JSONObject lender)
+        {
+            try
+            {
+                if (lender != null && _handler != null)
+                    _handler.handle(lender);
+                _lender = lender;
+            }
+            catch (Exception e)
+            {
+                _failure = e;
+            }
+            _done.countDown();
+        }
+
+        void fail(Exception e)
+        {
+            if (_done.getCount() == 0) return;
+            _failure = e;
+            _done.countDown();
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        public boolean isDone()
+        {
+            return _done.getCount() == 0;
+        }
+
+        public JSONObject get()
+                throws InterruptedException, ExecutionException
+        {
+            _done.await();
+            return result();
+        }
+
+        public JSONObject get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if (!_done.await(timeout, unit))
+                throw new TimeoutException();
+            return result();
+        }
+
+        private JSONObject result()
+                throws ExecutionException
+        {
+            if (_failure != null)
+                throw new ExecutionException(_failure);
+            return _lender;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.kiva.properties.KivaProperties;
+import com.nfolkert.utils.FileUtilsExt;
+import com.nfolkert.utils.JSONUtils;
+import com.nfolkert.json.JSONArray;
+import com.nfolkert.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Walks the newest lenders from page 1 only until it reaches lenders handed out by a previous sync, instead of
+ * clearing the NewestLenders cache and re-walking every page.  The high-water mark is the latest member_since
+ * seen plus the ids of the most recent lenders, which recognize the overlap even when several lenders share
+ * a timestamp.
+ *
+ * Lenders who join while the walk is in progress push older lenders onto later pages, so a lender can show up on
+ * two consecutive pages; such repeats are dropped.  Pages are always re-queried, never read from the cache.
+ *
+ * Lenders handed out are only recorded as known by commit, once the caller has finished with them, so a run that
+ * fails part way hands the same lenders out again next time rather than losing them.
+ */
+public class KivaNewestLenderSync
+{
+    private static final File kDefaultSyncState = new File(KivaProperties._kivaProps.getProperty(
+            "newestLendersSync", KivaProperties._kivaProps.getProperty("queryCache") + ".newestLenders"));
+
+    private static final int kKnownIdsToKeep = 1000;
+
+    private final File _stateFile;
+    private String _latestMemberSince;
+    private final Set<String> _knownIds = new LinkedHashSet<String>();
+    private List<JSONObject> _handedOut;
+
+    public KivaNewestLenderSync()
+            throws Exception
+    {
+        this(kDefaultSyncState);
+    }
+
+    public KivaNewestLenderSync(File stateFile)
+            throws Exception
+    {
+        _stateFile = stateFile;
+        if (_stateFile.exists())
+        {
+            final JSONObject state = new JSONObject(FileUtilsExt.readFileAsString(_stateFile));
+            _latestMemberSince = state.optString("latest_member_since");
+            final JSONArray ids = state.optJSONArray("known_ids");
+            if (ids != null)
+                for (int i = 0; i < ids.length(); i++)
+                    _knownIds.add(ids.getString(i));
+        }
+    }
+
+    public boolean hasSynced()
+    {
+        return _latestMemberSince != null || !_knownIds.isEmpty();
+    }
+
+    /**
+     * Hands every lender who joined since the last committed sync to the handler, newest first.  Call commit once
+     * the lenders have been dealt with to record them as known.
+     *
+     * @param maxPages how many pages a first sync walks, having nothing to stop at.  Later syncs ignore it and walk
+     * as many pages as it takes to reach a known lender, or to run out of pages, since stopping short would leave
+     * a gap of lenders that commit would then record as known without their ever being handed out.
+     * @return the number of pages requested
+     */
+    public int sync(KivaQueryHandler handler, int maxPages)
+            throws Exception
+    {
+        final List<JSONObject> newLenders = new ArrayList<JSONObject>();
+        final Set<String> seenThisSync = new HashSet<String>();
+        final int pageLimit = hasSynced() ? Integer.MAX_VALUE : maxPages;
+
+        int page = 1;
+        for (; page <= pageLimit; page++)
+        {
+            final JSONObject file = new JSONObject(KivaResultManager.refreshResultsAsString(
+                    KivaQueryType.NewestLenders, KivaFetcher.newestLendersUrl(page)));
+            final JSONArray lenders = file.getJSONArray("lenders");
+            if (lenders.length() == 0)
+                break;
+
+            boolean reachedKnown = false;
+            for (int i = 0; i < lenders.length(); i++)
+            {
+                final JSONObject lender = lenders.getJSONObject(i);
+                final String id = lender.optString("lender_id");
+                if (id == null || !seenThisSync.add(id))
+                    continue;
+                if (isKnown(id, lender.optString("member_since")))
+                    reachedKnown = true;
+                else
+                    newLenders.add(lender);
+            }
+            if (reachedKnown)
+                break;
+        }
+
+        for (JSONObject lender : newLenders)
+            handler.handle(lender);
+
+        _handedOut = newLenders;
+        return Math.min(page, pageLimit);
+    }
+
+    /**
+     * Records the lenders handed out by the last sync as known and saves the sync state, so the next sync stops
+     * where this one started.
+     */
+    public void commit()
+            throws Exception
+    {
+        if (_handedOut == null)
+            return;
+        markKnown(_handedOut);
+        save();
+        _handedOut = null;
+    }
+
+    private boolean isKnown(String id, String memberSince)
+    {
+        if (_knownIds.contains(id))
+            return true;
+        return _latestMemberSince != null && memberSince != null && memberSince.compareTo(_latestMemberSince) < 0;
+    }
+
+    private void markKnown(List<JSONObject> newestFirst)
+    {
+        final Set<String> ids = new LinkedHashSet<String>();
+        for (JSONObject lender : newestFirst)
+        {
+            ids.add(lender.optString("lender_id"));
+            final String memberSince = lender.optString("member_since");
+            if (memberSince != null && (_latestMemberSince == null || memberSince.compareTo(_latestMemberSince) > 0))
+                _latestMemberSince = memberSince;
+        }
+        for (String id : _knownIds)
+        {
+            if (ids.size() >= kKnownIdsToKeep) break;
+            ids.add(id);
+        }
+        _knownIds.clear();
+        _knownIds.addAll(ids);
+    }
+
+    private void save()
+            throws Exception
+    {
+        final JSONObject state = new JSONObject();
+        if (_latestMemberSince != null)
+            state.put("latest_member_since", _latestMemberSince);
+        final JSONArray ids = new JSONArray();
+        for (String id : _knownIds)
+            ids.put(id);
+        state.put("known_ids", ids);
+        JSONUtils.FormattedPrinter printer = new JSONUtils.FormattedPrinter(state);
+        printer.setInlineNonObjectArrayEntries(true);
+        FileUtilsExt.writeFile(_stateFile, printer.formatPrint());
+    }
+}
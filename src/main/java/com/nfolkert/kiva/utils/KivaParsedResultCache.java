@@ -0,0 +1,153 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.json.JSONObject;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-process LRU cache of parsed result pages, so a page that is handled repeatedly in one run is parsed only
+ * once.  Pages are weighed by an estimate of their parsed size, and the cache keeps both its total weight and,
+ * optionally, each query type's weight under a budget.  Cached pages are shared between callers and must not
+ * be modified.
+ */
+public class KivaParsedResultCache
+{
+    /**
+     * A parsed page takes several times the memory of its JSON text: every value is boxed and every object is a
+     * map of entries.
+     */
+    public static final int kParsedBytesPerTextByte = 6;
+
+    private final long _maxBytes;
+    private final Map<KivaQueryType, Long> _quotas = new EnumMap<KivaQueryType, Long>(KivaQueryType.class);
+
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+    private long _bytes;
+    private final long[] _bytesByType = new long[KivaQueryType.values().length];
+    private final long[] _hits = new long[KivaQueryType.values().length];
+    private final long[] _misses = new long[KivaQueryType.values().length];
+    private long _evictions;
+
+    public KivaParsedResultCache(long maxBytes)
+    {
+        _maxBytes = maxBytes;
+    }
+
+    public synchronized void setQuota(KivaQueryType type, long maxBytes)
+    {
+        _quotas.put(type, maxBytes);
+        evict(type);
+    }
+
+    private static String key(KivaQueryType type, String queryURL)
+    {
+        return type.name() + " " + queryURL;
+    }
+
+    public synchronized JSONObject get(KivaQueryType type, String queryURL)
+    {
+        final Entry entry = _entries.get(key(type, queryURL));
+        if (entry == null)
+        {
+            _misses[type.ordinal()]++;
+            return null;
+        }
+        _hits[type.ordinal()]++;
+        return entry.page;
+    }
+
+    public synchronized void put(KivaQueryType type, String queryURL, JSONObject page, long textBytes)
+    {
+        final long bytes = textBytes * kParsedBytesPerTextByte;
+        final Long quota = _quotas.get(type);
+        if (bytes > _maxBytes || (quota != null && bytes > quota))
+            return;
+
+        remove(_entries.put(key(type, queryURL), new Entry(type, page, bytes)));
+        _bytes += bytes;
+        _bytesByType[type.ordinal()] += bytes;
+        evict(type);
+    }
+
+    public synchronized void invalidate(KivaQueryType type, String queryURL)
+    {
+        remove(_entries.remove(key(type, queryURL)));
+    }
+
+    public synchronized void invalidate(KivaQueryType type)
+    {
+        for (Iterator<Entry> it = _entries.values().iterator(); it.hasNext();)
+        {
+            final Entry entry = it.next();
+            if (entry.type == type)
+            {
+                it.remove();
+                remove(entry);
+            }
+        }
+    }
+
+    private void remove(Entry entry)
+    {
+        if (entry == null) return;
+        _bytes -= entry.bytes;
+        _bytesByType[entry.type.ordinal()] -= entry.bytes;
+    }
+
+    /**
+     * Evicts least recently used pages of the given type until it is back under its quota, then least recently
+     * used pages of any type until the whole cache is back under budget.
+     */
+    private void evict(KivaQueryType type)
+    {
+        final Long quota = _quotas.get(type);
+        for (Iterator<Entry> it = _entries.values().iterator();
+             quota != null && _bytesByType[type.ordinal()] > quota && it.hasNext();)
+        {
+            final Entry entry = it.next();
+            if (entry.type == type)
+            {
+                it.remove();
+                remove(entry);
+                _evictions++;
+            }
+        }
+        for (Iterator<Entry> it = _entries.values().iterator(); _bytes > _maxBytes && it.hasNext();)
+        {
+            remove(it.next());
+            it.remove();
+            _evictions++;
+        }
+    }
+
+    public synchronized void dump()
+    {
+        System.out.println("Parsed result cache holds " + _entries.size() + " pages, ~" + _bytes / 1024 + " of " +
+                           _maxBytes / 1024 + " KB; " + _evictions + " evictions");
+        for (KivaQueryType type : KivaQueryType.values())
+        {
+            final int i = type.ordinal();
+            if (_hits[i] + _misses[i] == 0) continue;
+            final Long quota = _quotas.get(type);
+            System.out.println("\t" + type.name() + ": " + _hits[i] + " hits, " + _misses[i] + " misses, ~" +
+                               _bytesByType[i] / 1024 + " KB" + (quota == null ? "" : " of " + quota / 1024 + " KB quota"));
+        }
+    }
+
+    private static class Entry
+    {
+        final KivaQueryType type;
+        final JSONObject page;
+        final long bytes;
+
+        Entry(KivaQueryType type, JSONObject page, long bytes)
+        {
+            this.type = type;
+            this.page = page;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.nfolkert.kiva.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A handler that folds records into a partial result, such as groups or a heap, of the handing thread's own, so it
+ * may be run with Unordered delivery without locking per record.  The subclass merges the partials once the query
+ * has run; partials from separate queries, such as one per dump, merge the same way.
+ */
+abstract class KivaPartialHandler<P> extends KivaQueryHandler
+{
+    private final ThreadLocal<P> _partial = new ThreadLocal<P>();
+    private final List<P> _partials = new ArrayList<P>();
+
+    /**
+     * @return an empty partial, for a thread handing over its first record
+     */
+    protected abstract P newPartial();
+
+    /**
+     * @return the calling thread's partial, created on its first record
+     */
+    protected final P getPartial()
+    {
+        P partial = _partial.get();
+        if (partial == null)
+        {
+            partial = newPartial();
+            _partial.set(partial);
+            synchronized (_partials)
+            {
+                _partials.add(partial);
+            }
+        }
+        return partial;
+    }
+
+    /**
+     * @return the partial of every thread that handed over a record
+     */
+    protected final List<P> getPartials()
+    {
+        synchronized (_partials)
+        {
+            return new ArrayList<P>(_partials);
+        }
+    }
+}
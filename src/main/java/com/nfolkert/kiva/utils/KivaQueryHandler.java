@@ -1,42 +1,168 @@
 package com.nfolkert.kiva.utils;
 
+import com.nfolkert.json.JSONException;
 import com.nfolkert.json.JSONObject;
 import com.nfolkert.json.JSONArray;
+import com.nfolkert.json.JSONTokener;
+
+import java.io.Reader;
+import java.util.Set;
 
 /**
  */
 public abstract class KivaQueryHandler
 {
+    /**
+     * Called once per record.  A dump query run with {@link KivaDump.Delivery#Unordered} calls this from several
+     * threads at once.
+     */
     public abstract void handle(JSONObject object)
             throws Exception;
 
-    public final boolean handleFile(KivaQueryType type, JSONObject file)
-            throws Exception
+    /**
+     * @return the only top-level fields of a record that handle reads, or null for all of them.  Records streamed
+     * to the handler hold just these fields: the others are skipped by the tokenizer without being built.
+     */
+    public Set<String> getFields()
+    {
+        return null;
+    }
+
+    /**
+     * @return the key of the array holding a result's records
+     */
+    static String getRecordsKey(KivaQueryType type)
     {
         if (type == KivaQueryType.Lenders ||
             type == KivaQueryType.NewestLenders ||
             type == KivaQueryType.TeamLenders)
+            return "lenders";
+        else if (type == KivaQueryType.Loans)
+            return "loans";
+        else if (type == KivaQueryType.RecentLendingActions)
+            return "lending_actions";
+        else if (type == KivaQueryType.LoansLenders)
+            return "loans_lenders";
+        else
+            throw new UnsupportedOperationException();
+    }
+
+    public final boolean handleFile(KivaQueryType type, JSONObject file)
+            throws Exception
+    {
+        final JSONArray records = file.getJSONArray(getRecordsKey(type));
+        for (int i = 0; i < records.length(); i++)
+            handle(records.getJSONObject(i));
+        return records.length() > 0;
+    }
+
+    /**
+     * Same as handleFile on the parsed result, but parses the records one at a time as they are read, so only one
+     * record of the result is in memory at once.  Other top-level values are skipped, as are the fields of each
+     * record not named by getFields.
+     */
+    public final boolean handleStream(KivaQueryType type, Reader in)
+            throws Exception
+    {
+        final String recordsKey = getRecordsKey(type);
+        final JSONTokener x = new JSONTokener(in);
+        if (x.nextClean() != '{')
+            throw x.syntaxError("A JSONObject text must begin with '{'");
+
+        int handled = -1;
+        for (;;)
         {
-            final JSONArray lenders = file.getJSONArray("lenders");
-            for (int i = 0; i < lenders.length(); i++)
-                handle(lenders.getJSONObject(i));
-            return lenders.length() > 0;
+            char c = x.nextClean();
+            if (c == 0)
+                throw x.syntaxError("A JSONObject text must end with '}'");
+            if (c == '}')
+                break;
+            x.back();
+            final String key = x.nextValueDedup();
+            if (x.nextClean() != ':')
+                throw x.syntaxError("Expected a ':' after a key");
+
+            if (key.equals(recordsKey))
+                handled = handleRecords(x);
+            else
+                x.skipValue();
+
+            c = x.nextClean();
+            if (c == '}')
+                break;
+            if (c != ',' && c != ';')
+                throw x.syntaxError("Expected a ',' or '}'");
         }
-        else if (type == KivaQueryType.Loans)
+
+        if (handled < 0)
+            throw new JSONException("JSONObject[" + JSONObject.quote(recordsKey) + "] not found.");
+        return handled > 0;
+    }
+
+    private int handleRecords(JSONTokener x)
+            throws Exception
+    {
+        if (x.nextClean() != '[')
+            throw x.syntaxError("A JSONArray text must start with '['");
+        if (x.nextClean() == ']')
+            return 0;
+        x.back();
+
+        final Set<String> fields = getFields();
+        for (int i = 0;; )
         {
-            final JSONArray loans = file.getJSONArray("loans");
-            for (int i = 0; i < loans.length(); i++)
-                handle(loans.getJSONObject(i));
-            return loans.length() > 0;
+            if (x.nextClean() != '{')
+                throw new JSONException("JSONArray[" + i + "] is not a JSONObject.");
+            x.back();
+            handle(fields == null ? new JSONObject(x) : readProjected(x, fields));
+            i++;
+
+            switch (x.nextClean())
+            {
+                case ',':
+                case ';':
+                    if (x.nextClean() == ']')
+                        return i;
+                    x.back();
+                    break;
+                case ']':
+                    return i;
+                default:
+                    throw x.syntaxError("Expected a ',' or ']'");
+            }
         }
-        else if (type == KivaQueryType.RecentLendingActions)
+    }
+
+    /**
+     * Parses one record, keeping only the given fields.
+     */
+    private static JSONObject readProjected(JSONTokener x, Set<String> fields)
+            throws Exception
+    {
+        final JSONObject record = new JSONObject();
+        x.nextClean();
+        for (;;)
         {
-            final JSONArray actions = file.getJSONArray("lending_actions");
-            for (int i = 0; i < actions.length(); i++)
-                handle(actions.getJSONObject(i));
-            return actions.length() > 0;
+            char c = x.nextClean();
+            if (c == 0)
+                throw x.syntaxError("A JSONObject text must end with '}'");
+            if (c == '}')
+                return record;
+            x.back();
+            final String key = x.nextValueDedup();
+            if (x.nextClean() != ':')
+                throw x.syntaxError("Expected a ':' after a key");
+
+            if (fields.contains(key))
+                record.put(key, x.nextValue());
+            else
+                x.skipValue();
+
+            c = x.nextClean();
+            if (c == '}')
+                return record;
+            if (c != ',' && c != ';')
+                throw x.syntaxError("Expected a ',' or '}'");
         }
-        else
-            throw new UnsupportedOperationException();
     }
 }
@@ -8,7 +8,8 @@ public enum KivaQueryType
     Lenders,
     Loans,
     RecentLendingActions,
-    TeamLenders;
+    TeamLenders,
+    LoansLenders;
 
     public static KivaQueryType typeForZipEntry(String zipName)
     {
@@ -16,6 +17,7 @@ public enum KivaQueryType
         final String root = path[0];
         if (root.equals("lenders")) return Lenders;
         if (root.equals("loan")) return Loans;
+        if (root.equals("loans_lenders")) return LoansLenders;
 
         for (KivaQueryType type: KivaQueryType.values())
             if (type.name().equalsIgnoreCase(path[0]))
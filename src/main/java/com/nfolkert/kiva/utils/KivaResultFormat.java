@@ -0,0 +1,87 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.utils.FileUtilsExt;
+import com.nfolkert.utils.JSONUtils;
+import com.nfolkert.utils.StringUtilsExt;
+import com.nfolkert.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * How a query result is encoded in the cache.  Formatted re-serializes the response as indented JSON with sorted
+ * keys, which is easy to read by hand but costs a parse and a print per miss and two to three times the space;
+ * the other formats keep the response body exactly as it arrived.
+ *
+ * Decoding sniffs the stored bytes, so a cache written in one format stays readable after switching to another:
+ * gzip and zlib streams have fixed magic bytes, and neither can be the first byte of a JSON document.
+ */
+public enum KivaResultFormat
+{
+    Formatted,
+    Raw,
+    Gzip,
+    Deflate;
+
+    public byte[] encode(byte[] responseBody)
+            throws Exception
+    {
+        switch (this)
+        {
+            case Formatted:
+                final String json = new String(responseBody, StringUtilsExt.kCHARSET_UTF8);
+                JSONUtils.FormattedPrinter printer = new JSONUtils.FormattedPrinter(JSONObject.parseJSON(json));
+                return printer.formatPrint().getBytes(StringUtilsExt.kCHARSET_UTF8);
+            case Raw:
+                return responseBody;
+            case Gzip:
+            case Deflate:
+                final ByteArrayOutputStream bout = new ByteArrayOutputStream(responseBody.length / 4 + 64);
+                final OutputStream out = this == Gzip ? new GZIPOutputStream(bout) : new DeflaterOutputStream(bout);
+                out.write(responseBody);
+                out.close();
+                return bout.toByteArray();
+            default:
+                throw new IllegalStateException(name());
+        }
+    }
+
+    public static InputStream openDecoded(byte[] stored)
+            throws IOException
+    {
+        final InputStream in = new ByteArrayInputStream(stored);
+        if (isGzip(stored))
+            return new GZIPInputStream(in);
+        if (isZlib(stored))
+            return new InflaterInputStream(in);
+        return in;
+    }
+
+    public static byte[] decode(byte[] stored)
+            throws IOException
+    {
+        if (!isGzip(stored) && !isZlib(stored))
+            return stored;
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream(stored.length * 4);
+        FileUtilsExt.transferStream(openDecoded(stored), bout, 8192);
+        return bout.toByteArray();
+    }
+
+    private static boolean isGzip(byte[] stored)
+    {
+        return stored.length >= 2 && (stored[0] & 0xff) == 0x1f && (stored[1] & 0xff) == 0x8b;
+    }
+
+    private static boolean isZlib(byte[] stored)
+    {
+        // 0x78 is deflate with a 32K window, the only header DeflaterOutputStream writes
+        return stored.length >= 2 && (stored[0] & 0xff) == 0x78 && (((stored[0] & 0xff) << 8) | (stored[1] & 0xff)) % 31 == 0;
+    }
+}
@@ -1,19 +1,35 @@
 package com.nfolkert.kiva.utils;
 
-import com.nfolkert.collections.ListOrderedMap;
 import com.nfolkert.kiva.properties.KivaProperties;
-import com.nfolkert.utils.FileUtilsExt;
 import com.nfolkert.utils.URLUtils;
-import com.nfolkert.utils.JSONUtils;
-import com.nfolkert.json.JSONArray;
+import com.nfolkert.utils.CacheMetrics;
+import com.nfolkert.utils.MetricsRegistry;
+import com.nfolkert.utils.DaemonThreadFactory;
+import com.nfolkert.utils.RateLimitedURLTransport;
+import com.nfolkert.utils.StringUtilsExt;
 import com.nfolkert.json.JSONObject;
-import com.nfolkert.exception.BaseRuntimeException;
+import com.nfolkert.json.JSONTokener;
 
 import java.io.File;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 
 /**
  */
@@ -21,84 +37,403 @@ public class KivaResultManager
 {
     private static final File kKivaQueryCacheList = new File(KivaProperties._kivaProps.getProperty("queryCache"));
     private static final File kKivaQueryCache = new File(KivaProperties._kivaProps.getProperty("queryCacheDir"));
+    private static final String kKivaQueryCacheStore = KivaProperties._kivaProps.getProperty("queryCacheStore", "files");
+    private static final KivaResultFormat kKivaQueryCacheFormat =
+            KivaResultFormat.valueOf(KivaProperties._kivaProps.getProperty("queryCacheFormat", "Formatted"));
+    private static final long kMaxStoredBytes =
+            Long.parseLong(KivaProperties._kivaProps.getProperty("queryCacheMaxMegabytes", "0")) * 1024 * 1024;
+    private static final long kParsedCacheBytes =
+            Long.parseLong(KivaProperties._kivaProps.getProperty("parsedCacheMegabytes", "0")) * 1024 * 1024;
+    private static final double kRequestsPerSecond =
+            Double.parseDouble(KivaProperties._kivaProps.getProperty("kivaRequestsPerSecond", "1"));
+    private static final int kRequestBurst =
+            Integer.parseInt(KivaProperties._kivaProps.getProperty("kivaRequestBurst", "4"));
+    private static final long kMetricsReportSeconds =
+            Long.parseLong(KivaProperties._kivaProps.getProperty("metricsReportSeconds", "0"));
+
+    final KivaResultStore _store;
+    final KivaResultFormat _format;
+    final AtomicInteger _queries = new AtomicInteger();
+    private volatile KivaParsedResultCache _parsedCache;
+    private volatile KivaCachePolicy _policy = new KivaCachePolicy();
+    private volatile long _maxStoredBytes;
+    final AtomicInteger _evicted = new AtomicInteger();
+    /**
+     * Registered as "KivaQuery.<type>" in the MetricsRegistry
+     */
+    private final Map<KivaQueryType, CacheMetrics> _metrics = new EnumMap<KivaQueryType, CacheMetrics>(KivaQueryType.class);
+    final RateLimitedURLTransport _transport =
+            new RateLimitedURLTransport(URLUtils.getTransport(), kRequestsPerSecond, kRequestBurst);
+
+    /**
+     * Misses currently being fetched, so that concurrent requests for the same query share one round trip.  The
+     * fetches run on a pool of their own rather than on the first requester's thread, so a requester interrupted
+     * while waiting gives up alone, without failing the fetch for the others.
+     */
+    private final ConcurrentMap<String, FutureTask<byte[]>> _inFlight = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+    private final ExecutorService _fetcher =
+            Executors.newCachedThreadPool(new DaemonThreadFactory("KivaResultFetcher"));
+
+    /**
+     * Stale results being refreshed in the background, so each is refreshed once however often it is read
+     */
+    private final ConcurrentMap<String, Boolean> _revalidating = new ConcurrentHashMap<String, Boolean>();
+    private final ExecutorService _revalidator =
+            Executors.newFixedThreadPool(2, new DaemonThreadFactory("KivaResultRevalidator"));
+
+    public KivaResultManager(KivaResultStore store, KivaResultFormat format)
+    {
+        _store = store;
+        _format = format;
+        for (KivaQueryType type : KivaQueryType.values())
+            _metrics.put(type, MetricsRegistry.getCacheMetrics("KivaQuery." + type.name()));
+    }
 
-    Map<KivaQueryType, Map<String, File>> _map = new ListOrderedMap<KivaQueryType, Map<String, File>>();
-    int _queries;
+    public CacheMetrics getMetrics(KivaQueryType type)
+    {
+        return _metrics.get(type);
+    }
 
-    private static KivaResultManager _instance;
+    private static class InstanceHolder
+    {
+        static final KivaResultManager kInstance = readInstance();
+    }
 
     public static KivaResultManager getInstance()
     {
-        if (_instance == null)
-            _instance = readInstance();
-        return _instance;
+        return InstanceHolder.kInstance;
+    }
+
+    /**
+     * @param parsedCache keeps parsed pages for getResultsAsJSON, or null to parse every page on every access
+     */
+    public void setParsedCache(KivaParsedResultCache parsedCache)
+    {
+        _parsedCache = parsedCache;
+    }
+
+    public void setPolicy(KivaCachePolicy policy)
+    {
+        _policy = policy;
+    }
+
+    /**
+     * @param maxStoredBytes once the store grows past this, least recently read results are evicted until it is
+     * back under 90% of it; 0 for no limit
+     */
+    public void setMaxStoredBytes(long maxStoredBytes)
+    {
+        _maxStoredBytes = maxStoredBytes;
+    }
+
+    public static String getResultsAsString(KivaQueryType type, String queryURL)
+            throws Exception
+    {
+        return new String(getResults(type, queryURL), StringUtilsExt.kCHARSET_UTF8);
+    }
+
+    /**
+     * With a parsed cache the returned page may be shared with other callers, so it must not be modified.
+     */
+    public static JSONObject getResultsAsJSON(KivaQueryType type, String queryURL)
+            throws Exception
+    {
+        final KivaResultManager krm = getInstance();
+        final KivaParsedResultCache parsedCache = krm._parsedCache;
+        if (parsedCache != null)
+        {
+            final JSONObject cached = parsedCache.get(type, queryURL);
+            if (cached != null && krm.isUsable(type, queryURL))
+            {
+                krm._metrics.get(type).hit(0);
+                return cached;
+            }
+        }
+
+        final CountingInputStream counter = new CountingInputStream(openResults(type, queryURL));
+        final Reader in = new InputStreamReader(counter, StringUtilsExt.kCHARSET_UTF8);
+        try
+        {
+            final long start = System.nanoTime();
+            final JSONObject page = new JSONObject(new JSONTokener(in));
+            krm._metrics.get(type).parsed(System.nanoTime() - start);
+            if (parsedCache != null)
+                parsedCache.put(type, queryURL, page, counter.getByteCount());
+            return page;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
     }
 
-    private void addQueryFile(KivaQueryType type, String queryURL, File file)
+    /**
+     * @return the cached result of the query, or null if it has none that may be served, in which case nothing is
+     * queried
+     */
+    public static JSONObject getCachedResultsAsJSON(KivaQueryType type, String queryURL)
+            throws Exception
     {
-        Map<String, File> subMap = _map.get(type);
-        if (subMap == null)
+        final KivaResultManager krm = getInstance();
+        final CacheMetrics metrics = krm._metrics.get(type);
+        final byte[] res = krm._store.read(type, queryURL);
+        if (res == null || !krm.isUsable(type, queryURL))
         {
-            subMap = new ListOrderedMap<String, File>();
-            _map.put(type, subMap);
+            metrics.miss();
+            return null;
         }
-        subMap.put(queryURL, file);
+        metrics.hit(res.length);
+        return parse(KivaResultFormat.decode(res));
     }
 
-    public static String getResultsAsString(KivaQueryType type, String queryURL)
+    /**
+     * Queries the URL without caching its result, for queries whose results are cached piece by piece under other
+     * URLs with putResults.
+     */
+    public static JSONObject queryUncachedAsJSON(KivaQueryType type, String queryURL)
             throws Exception
     {
-        return FileUtilsExt.readFileAsString(getResultFile(type, queryURL));
+        final KivaResultManager krm = getInstance();
+        krm._queries.incrementAndGet();
+        final long start = System.nanoTime();
+        final byte[] response = krm._transport.getBytes(queryURL);
+        krm._metrics.get(type).fetched(System.nanoTime() - start);
+        return parse(response);
     }
 
-    public static File getResultFile(KivaQueryType queryType, String queryURL)
+    /**
+     * Caches a response body for the URL as if it had been queried, replacing any cached result.
+     */
+    public static void putResults(KivaQueryType type, String queryURL, byte[] response)
+            throws Exception
+    {
+        getInstance().store(type, queryURL, response, true);
+    }
+
+    private static JSONObject parse(byte[] response)
+            throws Exception
+    {
+        return new JSONObject(new String(response, StringUtilsExt.kCHARSET_UTF8));
+    }
+
+    /**
+     * @return the decoded response body
+     */
+    public static byte[] getResults(KivaQueryType queryType, String queryURL)
+            throws Exception
+    {
+        return KivaResultFormat.decode(getStoredResults(queryType, queryURL));
+    }
+
+    /**
+     * Streams the decoded response body without first inflating all of it into memory.
+     */
+    public static InputStream openResults(KivaQueryType queryType, String queryURL)
+            throws Exception
+    {
+        return KivaResultFormat.openDecoded(getStoredResults(queryType, queryURL));
+    }
+
+    private static byte[] getStoredResults(KivaQueryType queryType, String queryURL)
             throws Exception
     {
         final KivaResultManager krm = getInstance();
-        final Map<String, File> subMap = krm._map.get(queryType);
-        File res = subMap == null ? null : subMap.get(queryURL);
-        if (res != null && res.exists()) 
+        final CacheMetrics metrics = krm._metrics.get(queryType);
+        byte[] res = krm._store.read(queryType, queryURL);
+        if (res != null && krm.isUsable(queryType, queryURL))
+        {
+            metrics.hit(res.length);
             return res;
+        }
 
-        res = krm.queryAndCache(queryType, queryURL);
+        metrics.miss();
+        res = krm.queryAndCacheOnce(queryType, queryURL);
 
         return res;
     }
 
-    public File queryAndCache(KivaQueryType type, String queryURL)
+    private KivaCachePolicy.Freshness getFreshness(KivaQueryType type, String queryURL)
+    {
+        final KivaCachePolicy policy = _policy;
+        if (!policy.expires(type))
+            return KivaCachePolicy.Freshness.Fresh;
+        final long written = _store.getWrittenMillis(type, queryURL);
+        if (written < 0)
+            return KivaCachePolicy.Freshness.Expired;
+        return policy.getFreshness(type, written, System.currentTimeMillis());
+    }
+
+    /**
+     * @return whether a cached result for the query may be served; a stale one may, but gets refreshed in the
+     * background
+     */
+    private boolean isUsable(KivaQueryType type, String queryURL)
+    {
+        final KivaCachePolicy.Freshness freshness = getFreshness(type, queryURL);
+        if (freshness == KivaCachePolicy.Freshness.Stale)
+            revalidate(type, queryURL);
+        return freshness != KivaCachePolicy.Freshness.Expired;
+    }
+
+    private void revalidate(final KivaQueryType type, final String queryURL)
+    {
+        final String key = type.name() + " " + queryURL;
+        if (_revalidating.putIfAbsent(key, Boolean.TRUE) != null)
+            return;
+        _revalidator.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    queryAndCache(type, queryURL, true);
+                }
+                catch (Exception e)
+                {
+                    System.err.println("Failed to refresh stale " + type.name() + " result " + queryURL + ": " + e);
+                }
+                finally
+                {
+                    _revalidating.remove(key);
+                }
+            }
+        });
+    }
+
+    private byte[] queryAndCacheOnce(final KivaQueryType type, final String queryURL)
             throws Exception
     {
-        _queries++;
+        final String key = type.name() + " " + queryURL;
+        FutureTask<byte[]> fetch = _inFlight.get(key);
+        if (fetch == null)
+        {
+            final FutureTask<byte[]> ours = new FutureTask<byte[]>(new Callable<byte[]>()
+            {
+                public byte[] call()
+                        throws Exception
+                {
+                    // Another thread may have finished fetching between our cache check and registering this fetch
+                    final byte[] cached = _store.read(type, queryURL);
+                    if (cached != null && getFreshness(type, queryURL) != KivaCachePolicy.Freshness.Expired)
+                        return cached;
+                    return queryAndCache(type, queryURL, true);
+                }
+            })
+            {
+                @Override
+                protected void done()
+                {
+                    _inFlight.remove(key, this);
+                }
+            };
+            fetch = _inFlight.putIfAbsent(key, ours);
+            if (fetch == null)
+            {
+                fetch = ours;
+                _fetcher.execute(ours);
+            }
+        }
 
-        final String result = URLUtils.getURL(queryURL);
-        File dir = new File(kKivaQueryCache, type.name());
-        dir.mkdirs();
-        final Map<String, File> typeMap = _map.get(type);
-        String fName = "queryCache_" + (typeMap == null ? 1 : typeMap.size()+1) + ".json";
-        final File file = new File(dir, fName);
-        JSONUtils.FormattedPrinter printer = new JSONUtils.FormattedPrinter(JSONObject.parseJSON(result));
-        FileUtilsExt.writeFile(file,  printer.formatPrint());
-        addQueryFile(type, queryURL, file);
-        return file;
+        try
+        {
+            return fetch.get();
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Re-queries the URL even if it is cached and replaces the cached result, for queries such as the newest
+     * lenders whose pages change over time.
+     */
+    public static String refreshResultsAsString(KivaQueryType type, String queryURL)
+            throws Exception
+    {
+        final byte[] stored = getInstance().queryAndCache(type, queryURL, true);
+        return new String(KivaResultFormat.decode(stored), StringUtilsExt.kCHARSET_UTF8);
+    }
+
+    /**
+     * @return the result as stored, i.e. encoded in the cache format
+     */
+    public byte[] queryAndCache(KivaQueryType type, String queryURL)
+            throws Exception
+    {
+        return queryAndCache(type, queryURL, false);
+    }
+
+    private byte[] queryAndCache(KivaQueryType type, String queryURL, boolean replaceCached)
+            throws Exception
+    {
+        _queries.incrementAndGet();
+        final CacheMetrics metrics = _metrics.get(type);
+        final long start = System.nanoTime();
+        final byte[] response = _transport.getBytes(queryURL);
+        metrics.fetched(System.nanoTime() - start);
+        return store(type, queryURL, response, replaceCached);
+    }
+
+    private byte[] store(KivaQueryType type, String queryURL, byte[] response, boolean replaceCached)
+            throws Exception
+    {
+        final CacheMetrics metrics = _metrics.get(type);
+        final byte[] encoded = _format.encode(response);
+
+        if (!replaceCached)
+        {
+            final byte[] cached = _store.read(type, queryURL);
+            if (cached != null)
+                return cached;
+        }
+        _store.write(type, queryURL, encoded);
+        metrics.written(encoded.length);
+
+        final KivaParsedResultCache parsedCache = _parsedCache;
+        if (parsedCache != null && replaceCached)
+            parsedCache.invalidate(type, queryURL);
+
+        final long maxStoredBytes = _maxStoredBytes;
+        if (maxStoredBytes > 0 && _store.getStoredBytes() > maxStoredBytes)
+            _evicted.addAndGet(_store.evictToSize(maxStoredBytes / 10 * 9));
+
+        return encoded;
     }
 
     private static KivaResultManager readInstance()
     {
         try
         {
-            final KivaResultManager krm = new KivaResultManager();
-            if (!kKivaQueryCacheList.exists())
-                return krm;
-            final String jsonCache = FileUtilsExt.readFileAsString(kKivaQueryCacheList);
-            JSONArray jarr = new JSONArray(jsonCache);
-            for (int i = 0; i < jarr.length(); i++)
+            final KivaResultStore store;
+            if ("segments".equals(kKivaQueryCacheStore))
+            {
+                final KivaSegmentResultStore segmentStore = new KivaSegmentResultStore(new File(kKivaQueryCache, "segments"));
+                segmentStore.startCompactor(KivaSegmentResultStore.kDefaultCompactionPeriodMillis);
+                store = segmentStore;
+            }
+            else if ("files".equals(kKivaQueryCacheStore))
+                store = new KivaFileResultStore(kKivaQueryCacheList, kKivaQueryCache);
+            else
+                throw new IllegalStateException("Unknown queryCacheStore: " + kKivaQueryCacheStore);
+            final KivaResultManager krm = new KivaResultManager(store, kKivaQueryCacheFormat);
+            krm.setPolicy(KivaCachePolicy.fromProperties(KivaProperties._kivaProps));
+            krm.setMaxStoredBytes(kMaxStoredBytes);
+            if (kParsedCacheBytes > 0)
             {
-                final JSONObject jobj = jarr.getJSONObject(i);
-                String queryURL = jobj.getString("query");
-                String type = jobj.getString("type");
-                String path = jobj.getString("file");
-                krm.addQueryFile(KivaQueryType.valueOf(type), queryURL, new File(path));
+                final KivaParsedResultCache parsedCache = new KivaParsedResultCache(kParsedCacheBytes);
+                for (KivaQueryType type : KivaQueryType.values())
+                {
+                    final String quota = KivaProperties._kivaProps.getProperty("parsedCacheMegabytes." + type.name());
+                    if (quota != null)
+                        parsedCache.setQuota(type, Long.parseLong(quota) * 1024 * 1024);
+                }
+                krm.setParsedCache(parsedCache);
             }
+            if (kMetricsReportSeconds > 0)
+                MetricsRegistry.startReporter(kMetricsReportSeconds * 1000);
             return krm;
         }
         catch (Exception e)
@@ -110,60 +445,52 @@ public class KivaResultManager
     public static void dumpCache(boolean verbose)
     {
         KivaResultManager instance = getInstance();
-        System.out.println("Kiva query cache contains " + instance._map.size() + " entries:");
-        for (KivaQueryType type: instance._map.keySet())
-            System.out.println("\t" + type.name() + ": " + instance._map.get(type).size());
-        System.out.println("Required " + instance._queries + " queries for cache misses");
-
-        if (verbose)
+        instance._store.dump(verbose);
+        System.out.println("Required " + instance._queries.get() + " queries for cache misses");
+        if (instance._maxStoredBytes > 0)
+            System.out.println("Cache holds " + instance._store.getStoredBytes() / 1024 + " KB of results; evicted " +
+                               instance._evicted.get() + " to stay under " + instance._maxStoredBytes / 1024 + " KB");
+        instance._transport.dumpStats();
+        final KivaParsedResultCache parsedCache = instance._parsedCache;
+        if (parsedCache != null)
+            parsedCache.dump();
+        for (KivaQueryType type : KivaQueryType.values())
         {
-            for (KivaQueryType type : instance._map.keySet())
-            {
-                for (String query : instance._map.get(type).keySet())
-                {
-                    final File file = instance._map.get(type).get(query);
-                    System.out.println(query + "\t" + file.getAbsolutePath());
-                }
-            }
+            final CacheMetrics metrics = instance._metrics.get(type);
+            if (metrics.getHits() + metrics.getMisses() + metrics.getFetches() > 0)
+                System.out.println(metrics.getSummary());
         }
     }
 
-    public static void saveCache()
+    /**
+     * @return the bytes reclaimed from results the cache no longer refers to
+     */
+    public static long collectGarbage()
             throws Exception
     {
-        KivaResultManager instance = getInstance();
-        JSONArray jarr = new JSONArray();
-        for (KivaQueryType type: instance._map.keySet())
-        {
-            for (String query: instance._map.get(type).keySet())
-            {
-                JSONObject jobj = new JSONObject();
-                jobj.put("type", type.name());
-                jobj.put("query", query);
-                final File file = instance._map.get(type).get(query);
-                jobj.put("file", file.getAbsolutePath());
-                jarr.put(jobj);
-            }
+        final long reclaimed = getInstance()._store.collectGarbage();
+        System.out.println("Reclaimed " + reclaimed / 1024 + " KB of unreferenced cached results");
+        return reclaimed;
+    }
 
-        }
-        JSONUtils.FormattedPrinter printer = new JSONUtils.FormattedPrinter(jarr);
-        FileUtilsExt.writeFile(kKivaQueryCacheList, printer.formatPrint());
+    public static void saveCache()
+            throws Exception
+    {
+        getInstance()._store.save();
     }
 
     public static void clearCache(KivaQueryType... typesToClear)
             throws Exception
     {
         KivaResultManager instance = getInstance();
-
         Set<KivaQueryType> toClear =
                 new HashSet<KivaQueryType>(Arrays.asList(typesToClear == null ? KivaQueryType.values() : typesToClear));
+        final KivaParsedResultCache parsedCache = instance._parsedCache;
         for (KivaQueryType type: toClear)
         {
-            final Map<String, File> subMap = instance._map.get(type);
-            if (subMap != null)
-                for (File f: subMap.values())
-                    f.delete();
-            instance._map.remove(type);
+            instance._store.clear(type);
+            if (parsedCache != null)
+                parsedCache.invalidate(type);
         }
         saveCache();
     }
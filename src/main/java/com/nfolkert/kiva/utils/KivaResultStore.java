@@ -0,0 +1,62 @@
+package com.nfolkert.kiva.utils;
+
+/**
+ * Where KivaResultManager keeps query results, keyed by query type and URL.
+ */
+public abstract class KivaResultStore
+{
+    /**
+     * @return the stored result, or null if nothing is stored for this query
+     */
+    public abstract byte[] read(KivaQueryType type, String queryURL)
+            throws Exception;
+
+    /**
+     * Stores the result, replacing anything already stored for this query.
+     */
+    public abstract void write(KivaQueryType type, String queryURL, byte[] result)
+            throws Exception;
+
+    public abstract void clear(KivaQueryType type)
+            throws Exception;
+
+    /**
+     * @return when the stored result was written, or -1 if nothing is stored for this query
+     */
+    public abstract long getWrittenMillis(KivaQueryType type, String queryURL);
+
+    /**
+     * @return the bytes taken by the stored results
+     */
+    public abstract long getStoredBytes();
+
+    /**
+     * Removes the least recently read results until the rest take at most maxBytes.
+     *
+     * @return the number of results removed
+     */
+    public abstract int evictToSize(long maxBytes)
+            throws Exception;
+
+    /**
+     * Reclaims space held by results that are no longer reachable, such as those orphaned by a crash.
+     *
+     * @return the number of bytes reclaimed
+     */
+    public abstract long collectGarbage()
+            throws Exception;
+
+    /**
+     * Makes everything written so far durable.
+     */
+    public abstract void save()
+            throws Exception;
+
+    public abstract void dump(boolean verbose);
+
+    public void close()
+            throws Exception
+    {
+        save();
+    }
+}
@@ -0,0 +1,716 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.utils.DaemonThreadFactory;
+import com.nfolkert.utils.StringUtilsExt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Append-only log of query results split into size-bounded segment files.  Each record is
+ * <pre>
+ *   int crc, int keyLength, int valueLength (-1 for a deletion), long writtenMillis, key bytes, value bytes
+ * </pre>
+ * where the key is the query type name and URL, and the crc covers everything after it.  An in-memory index maps
+ * each key to the position of its latest value, so a cache hit is one positioned read with no directory lookup
+ * or lock: a slice of the memory mapping for sealed segments, and for the segment still being appended to, a read
+ * through a read-only channel the readers share, apart from the writer's, so an interrupted reader cannot close the
+ * writer's channel.  A reader's interrupt closes the shared channel; the next reader reopens it.
+ *
+ * Sealed segments get a hint file listing their records, so reopening the store rebuilds the index without
+ * reading any values; only the active segment is scanned, and a torn record at its end is truncated away.  A
+ * background compactor copies the live records out of mostly dead sealed segments and deletes them.
+ */
+public class KivaSegmentResultStore extends KivaResultStore
+{
+    public static final long kDefaultMaxSegmentBytes = 64L * 1024 * 1024;
+    public static final long kDefaultCompactionPeriodMillis = 5 * 60 * 1000;
+
+    private static final int kHeaderBytes = 4 + 4 + 4 + 8;
+    private static final double kCompactBelowLiveRatio = 0.5;
+    private static final Pattern kSegmentName = Pattern.compile("segment_(\\d+)\\.log");
+
+    private final File _dir;
+    private final long _maxSegmentBytes;
+
+    private final TreeMap<Integer, Segment> _segments = new TreeMap<Integer, Segment>();
+    private final ConcurrentMap<String, Location> _index = new ConcurrentHashMap<String, Location>();
+    private Segment _active;
+
+    private ScheduledExecutorService _compactor;
+    private long _reclaimedBytes;
+
+    public KivaSegmentResultStore(File dir)
+            throws IOException
+    {
+        this(dir, kDefaultMaxSegmentBytes);
+    }
+
+    public KivaSegmentResultStore(File dir, long maxSegmentBytes)
+            throws IOException
+    {
+        if (maxSegmentBytes <= kHeaderBytes || maxSegmentBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Segments must be mappable: " + maxSegmentBytes);
+        _dir = dir;
+        _maxSegmentBytes = maxSegmentBytes;
+        _dir.mkdirs();
+
+        final File[] files = _dir.listFiles();
+        for (File f : files == null ? new File[0] : files)
+        {
+            final Matcher m = kSegmentName.matcher(f.getName());
+            if (m.matches())
+            {
+                final int id = Integer.parseInt(m.group(1));
+                _segments.put(id, new Segment(id));
+            }
+        }
+
+        for (Segment segment : _segments.values())
+        {
+            final boolean last = segment.id == _segments.lastKey();
+            final List<RecordRef> hinted = segment.hintFile().exists() ? readHintIfIntact(segment) : null;
+            if (hinted != null)
+            {
+                replay(segment, hinted);
+                segment.map();
+            }
+            else if (last && !segment.hintFile().exists())
+            {
+                segment.open();
+                segment.records = scan(segment);
+                replay(segment, segment.records);
+                _active = segment;
+            }
+            else
+            {
+                // A sealed segment that lost its hint or holds a cut-short or overlong one, e.g. a crash while sealing
+                segment.open();
+                final List<RecordRef> records = scan(segment);
+                replay(segment, records);
+                segment.channel.force(true);
+                writeHint(segment, records);
+                segment.map();
+            }
+        }
+
+        if (_active == null)
+            _active = newActiveSegment();
+    }
+
+    private static String key(KivaQueryType type, String queryURL)
+    {
+        return type.name() + " " + queryURL;
+    }
+
+    private static KivaQueryType typeOf(String key)
+    {
+        return KivaQueryType.valueOf(key.substring(0, key.indexOf(' ')));
+    }
+
+    public byte[] read(KivaQueryType type, String queryURL)
+            throws IOException
+    {
+        final Location loc = _index.get(key(type, queryURL));
+        if (loc == null)
+            return null;
+        loc.lastUsedMillis = System.currentTimeMillis();
+        return loc.segment.readValue(loc.valueOffset, loc.valueLength);
+    }
+
+    public long getWrittenMillis(KivaQueryType type, String queryURL)
+    {
+        final Location loc = _index.get(key(type, queryURL));
+        return loc == null ? -1 : loc.writtenMillis;
+    }
+
+    public synchronized long getStoredBytes()
+    {
+        long liveBytes = 0;
+        for (Segment segment : _segments.values())
+            liveBytes += segment.liveBytes;
+        return liveBytes;
+    }
+
+    /**
+     * Deletes the least recently read results and then compacts, so the space is given back right away.
+     */
+    public synchronized int evictToSize(long maxBytes)
+            throws IOException
+    {
+        long liveBytes = getStoredBytes();
+        if (liveBytes <= maxBytes)
+            return 0;
+
+        final List<Map.Entry<String, Location>> byLastUse = new ArrayList<Map.Entry<String, Location>>(_index.entrySet());
+        Collections.sort(byLastUse, new Comparator<Map.Entry<String, Location>>()
+        {
+            public int compare(Map.Entry<String, Location> o1, Map.Entry<String, Location> o2)
+            {
+                final long l1 = o1.getValue().lastUsedMillis;
+                final long l2 = o2.getValue().lastUsedMillis;
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+
+        int evicted = 0;
+        for (Map.Entry<String, Location> entry : byLastUse)
+        {
+            if (liveBytes <= maxBytes) break;
+            liveBytes -= entry.getValue().recordLength;
+            append(entry.getKey(), null, System.currentTimeMillis());
+            evicted++;
+        }
+        compact();
+        return evicted;
+    }
+
+    public synchronized void write(KivaQueryType type, String queryURL, byte[] result)
+            throws IOException
+    {
+        append(key(type, queryURL), result, System.currentTimeMillis());
+    }
+
+    public synchronized void clear(KivaQueryType type)
+            throws IOException
+    {
+        final String prefix = type.name() + " ";
+        for (String key : new ArrayList<String>(_index.keySet()))
+            if (key.startsWith(prefix))
+                append(key, null, System.currentTimeMillis());
+    }
+
+    public synchronized void save()
+            throws IOException
+    {
+        _active.channel.force(false);
+    }
+
+    public void close()
+            throws IOException
+    {
+        stopCompactor();
+        synchronized (this)
+        {
+            save();
+            _active.channel.close();
+            _active.closeReadChannel();
+        }
+    }
+
+    public synchronized void startCompactor(long periodMillis)
+    {
+        if (_compactor != null) return;
+        _compactor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("KivaSegmentCompactor"));
+        _compactor.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    compact();
+                }
+                catch (IOException e)
+                {
+                    System.err.println("Failed to compact " + _dir + ": " + e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stopCompactor()
+    {
+        final ScheduledExecutorService compactor;
+        synchronized (this)
+        {
+            compactor = _compactor;
+            _compactor = null;
+        }
+        if (compactor == null) return;
+        compactor.shutdown();
+        try
+        {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long collectGarbage()
+            throws IOException
+    {
+        return compact();
+    }
+
+    /**
+     * Rewrites every sealed segment that is mostly dead.  Holds the store lock while a segment is copied, which
+     * stalls other callers for at most one segment's worth of live data.
+     *
+     * @return the number of bytes reclaimed
+     */
+    public synchronized long compact()
+            throws IOException
+    {
+        long reclaimed = 0;
+        for (Segment segment : new ArrayList<Segment>(_segments.values()))
+        {
+            if (segment == _active || segment.size == 0) continue;
+            if (segment.liveBytes >= kCompactBelowLiveRatio * segment.size) continue;
+
+            final boolean hasOlderSegments = _segments.firstKey() < segment.id;
+            for (RecordRef record : readHint(segment))
+            {
+                if (record.valueLength < 0)
+                {
+                    // Deletions must outlive every older segment that might still hold the deleted value
+                    if (hasOlderSegments && !_index.containsKey(record.key))
+                        append(record.key, null, record.writtenMillis);
+                    continue;
+                }
+                final Location loc = _index.get(record.key);
+                if (loc != null && loc.segment == segment && loc.valueOffset == record.valueOffset())
+                {
+                    append(record.key, segment.readValue(loc.valueOffset, loc.valueLength), record.writtenMillis);
+                    _index.get(record.key).lastUsedMillis = loc.lastUsedMillis;
+                }
+            }
+
+            // The copies must be on disk before the only other copy goes
+            _active.channel.force(false);
+            _segments.remove(segment.id);
+            segment.hintFile().delete();
+            segment.file().delete();
+            reclaimed += segment.size;
+        }
+        _reclaimedBytes += reclaimed;
+        return reclaimed;
+    }
+
+    public synchronized void dump(boolean verbose)
+    {
+        final Map<KivaQueryType, Integer> counts = new TreeMap<KivaQueryType, Integer>();
+        for (String key : _index.keySet())
+        {
+            final KivaQueryType type = typeOf(key);
+            final Integer count = counts.get(type);
+            counts.put(type, count == null ? 1 : count + 1);
+        }
+
+        long totalBytes = 0;
+        long liveBytes = 0;
+        for (Segment segment : _segments.values())
+        {
+            totalBytes += segment.size;
+            liveBytes += segment.liveBytes;
+        }
+
+        System.out.println("Kiva query cache contains " + _index.size() + " entries in " + _segments.size() +
+                           " segments (" + liveBytes + " of " + totalBytes + " bytes live, " + _reclaimedBytes +
+                           " reclaimed by compaction):");
+        for (KivaQueryType type : counts.keySet())
+            System.out.println("\t" + type.name() + ": " + counts.get(type));
+
+        if (verbose)
+        {
+            for (Map.Entry<String, Location> entry : _index.entrySet())
+            {
+                final Location loc = entry.getValue();
+                System.out.println(entry.getKey() + "\t" + loc.segment.file().getName() + "@" + loc.valueOffset);
+            }
+        }
+    }
+
+    private void append(String key, byte[] value, long writtenMillis)
+            throws IOException
+    {
+        final byte[] keyBytes = key.getBytes(StringUtilsExt.kCHARSET_UTF8);
+        final int valueLength = value == null ? -1 : value.length;
+        final int recordLength = kHeaderBytes + keyBytes.length + Math.max(valueLength, 0);
+
+        if (_active.size > 0 && _active.size + recordLength > _maxSegmentBytes)
+            roll();
+
+        final ByteBuffer buf = ByteBuffer.allocate(recordLength);
+        buf.putInt(0);
+        buf.putInt(keyBytes.length);
+        buf.putInt(valueLength);
+        buf.putLong(writtenMillis);
+        buf.put(keyBytes);
+        if (value != null)
+            buf.put(value);
+        final CRC32 crc = new CRC32();
+        crc.update(buf.array(), 4, recordLength - 4);
+        buf.putInt(0, (int) crc.getValue());
+        buf.flip();
+
+        final long offset = _active.size;
+        while (buf.hasRemaining())
+            _active.channel.write(buf, offset + buf.position());
+        _active.size += recordLength;
+
+        final RecordRef record = new RecordRef(key, offset, keyBytes.length, valueLength, writtenMillis);
+        _active.records.add(record);
+        apply(_active, record);
+    }
+
+    private void replay(Segment segment, List<RecordRef> records)
+    {
+        for (RecordRef record : records)
+        {
+            apply(segment, record);
+            segment.size = Math.max(segment.size, record.offset + record.length());
+        }
+    }
+
+    private void apply(Segment segment, RecordRef record)
+    {
+        final Location old;
+        if (record.valueLength < 0)
+            old = _index.remove(record.key);
+        else
+        {
+            final Location loc =
+                    new Location(segment, record.valueOffset(), record.valueLength, record.length(), record.writtenMillis);
+            old = _index.put(record.key, loc);
+            segment.liveBytes += loc.recordLength;
+        }
+        if (old != null)
+            old.segment.liveBytes -= old.recordLength;
+    }
+
+    private void roll()
+            throws IOException
+    {
+        // The records must be durable before a hint vouching for them is
+        _active.channel.force(true);
+        writeHint(_active, _active.records);
+        _active.map();
+        _active = newActiveSegment();
+    }
+
+    private Segment newActiveSegment()
+            throws IOException
+    {
+        final Segment segment = new Segment(_segments.isEmpty() ? 1 : _segments.lastKey() + 1);
+        segment.open();
+        segment.records = new ArrayList<RecordRef>();
+        _segments.put(segment.id, segment);
+        return segment;
+    }
+
+    /**
+     * Reads records from the start of the segment up to the first one that is torn or fails its checksum, and
+     * truncates the segment there.
+     */
+    private List<RecordRef> scan(Segment segment)
+            throws IOException
+    {
+        final List<RecordRef> records = new ArrayList<RecordRef>();
+        final long fileLength = segment.channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(kHeaderBytes);
+        long offset = 0;
+        while (offset + kHeaderBytes <= fileLength)
+        {
+            header.clear();
+            readFully(segment.channel, header, offset);
+            header.flip();
+            final int storedCrc = header.getInt();
+            final int keyLength = header.getInt();
+            final int valueLength = header.getInt();
+            final long writtenMillis = header.getLong();
+            final long length = (long) kHeaderBytes + keyLength + Math.max(valueLength, 0);
+            if (keyLength <= 0 || valueLength < -1 || offset + length > fileLength)
+                break;
+
+            final ByteBuffer body = ByteBuffer.allocate((int) (length - kHeaderBytes));
+            readFully(segment.channel, body, offset + kHeaderBytes);
+            final CRC32 crc = new CRC32();
+            crc.update(header.array(), 4, kHeaderBytes - 4);
+            crc.update(body.array());
+            if ((int) crc.getValue() != storedCrc)
+                break;
+
+            final String key = new String(body.array(), 0, keyLength, StringUtilsExt.kCHARSET_UTF8);
+            records.add(new RecordRef(key, offset, keyLength, valueLength, writtenMillis));
+            offset += length;
+        }
+        if (offset < fileLength)
+            segment.channel.truncate(offset);
+        segment.size = offset;
+        return records;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException
+    {
+        while (buf.hasRemaining())
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new EOFException();
+    }
+
+    private void writeHint(Segment segment, List<RecordRef> records)
+            throws IOException
+    {
+        final File tmp = new File(_dir, segment.hintFile().getName() + ".tmp");
+        FileOutputStream fout = null;
+        DataOutputStream out = null;
+        try
+        {
+            fout = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fout));
+            out.writeInt(records.size());
+            for (RecordRef record : records)
+            {
+                final byte[] keyBytes = record.key.getBytes(StringUtilsExt.kCHARSET_UTF8);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeLong(record.offset);
+                out.writeInt(record.valueLength);
+                out.writeLong(record.writtenMillis);
+            }
+            out.flush();
+            fout.getFD().sync();
+            out.close();
+        }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+            IOUtils.closeQuietly(fout);
+        }
+        if (!tmp.renameTo(segment.hintFile()))
+            throw new IOException("Failed to write hint file " + segment.hintFile());
+    }
+
+    /**
+     * @return the segment's hinted records, or null if the hint is unreadable or names records past the end of the
+     * segment, so the segment must be rescanned
+     */
+    private List<RecordRef> readHintIfIntact(Segment segment)
+    {
+        try
+        {
+            final List<RecordRef> records = readHint(segment);
+            final long fileLength = segment.file().length();
+            for (RecordRef record : records)
+                if (record.offset + record.length() > fileLength)
+                    return null;
+            return records;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    private List<RecordRef> readHint(Segment segment)
+            throws IOException
+    {
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.hintFile())));
+            final int count = in.readInt();
+            final List<RecordRef> records = new ArrayList<RecordRef>(count);
+            for (int i = 0; i < count; i++)
+            {
+                final byte[] keyBytes = new byte[in.readInt()];
+                in.readFully(keyBytes);
+                final long offset = in.readLong();
+                final int valueLength = in.readInt();
+                final long writtenMillis = in.readLong();
+                final String key = new String(keyBytes, StringUtilsExt.kCHARSET_UTF8);
+                records.add(new RecordRef(key, offset, keyBytes.length, valueLength, writtenMillis));
+            }
+            return records;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static class RecordRef
+    {
+        final String key;
+        final long offset;
+        final int keyLength;
+        final int valueLength;
+        final long writtenMillis;
+
+        RecordRef(String key, long offset, int keyLength, int valueLength, long writtenMillis)
+        {
+            this.key = key;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.writtenMillis = writtenMillis;
+        }
+
+        long valueOffset()
+        {
+            return offset + kHeaderBytes + keyLength;
+        }
+
+        int length()
+        {
+            return kHeaderBytes + keyLength + Math.max(valueLength, 0);
+        }
+    }
+
+    private static class Location
+    {
+        final Segment segment;
+        final long valueOffset;
+        final int valueLength;
+        final int recordLength;
+        final long writtenMillis;
+        volatile long lastUsedMillis;
+
+        Location(Segment segment, long valueOffset, int valueLength, int recordLength, long writtenMillis)
+        {
+            this.segment = segment;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+            this.recordLength = recordLength;
+            this.writtenMillis = writtenMillis;
+            this.lastUsedMillis = writtenMillis;
+        }
+    }
+
+    private class Segment
+    {
+        final int id;
+        long size;
+        long liveBytes;
+
+        volatile FileChannel channel;
+        private FileChannel _readChannel;
+        volatile MappedByteBuffer mapped;
+        List<RecordRef> records;
+
+        Segment(int id)
+        {
+            this.id = id;
+        }
+
+        File file()
+        {
+            return new File(_dir, String.format("segment_%06d.log", id));
+        }
+
+        File hintFile()
+        {
+            return new File(_dir, String.format("segment_%06d.hint", id));
+        }
+
+        void open()
+                throws IOException
+        {
+            channel = new RandomAccessFile(file(), "rw").getChannel();
+        }
+
+        /**
+         * Seals the segment: from here on it is only read, through a read-only mapping.
+         */
+        void map()
+                throws IOException
+        {
+            final FileChannel readChannel = new RandomAccessFile(file(), "r").getChannel();
+            try
+            {
+                mapped = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            finally
+            {
+                readChannel.close();
+            }
+            if (channel != null)
+                channel.close();
+            channel = null;
+            records = null;
+            closeReadChannel();
+        }
+
+        synchronized FileChannel getReadChannel()
+                throws IOException
+        {
+            if (_readChannel == null || !_readChannel.isOpen())
+                _readChannel = new RandomAccessFile(file(), "r").getChannel();
+            return _readChannel;
+        }
+
+        synchronized void closeReadChannel()
+                throws IOException
+        {
+            if (_readChannel != null)
+                _readChannel.close();
+            _readChannel = null;
+        }
+
+        byte[] readValue(long valueOffset, int valueLength)
+                throws IOException
+        {
+            final byte[] value = new byte[valueLength];
+            for (;;)
+            {
+                final MappedByteBuffer sealed = mapped;
+                if (sealed != null)
+                {
+                    final ByteBuffer view = sealed.duplicate();
+                    view.position((int) valueOffset);
+                    view.get(value);
+                    return value;
+                }
+                try
+                {
+                    readFully(getReadChannel(), ByteBuffer.wrap(value), valueOffset);
+                    return value;
+                }
+                catch (ClosedByInterruptException e)
+                {
+                    throw e;
+                }
+                catch (ClosedChannelException e)
+                {
+                    // Closed under us by another reader's interrupt, or by sealing; reopen or use the mapping
+                }
+                catch (IOException e)
+                {
+                    // Sealed and compacted away while we were reading, so the mapping has the value
+                    if (mapped == null) throw e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.json.JSONObject;
+import com.nfolkert.utils.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the k highest-scoring records of a query, such as the 100 NYC lenders with the most loans, in a bounded
+ * min-heap, so a pass over a dump holds k records rather than every candidate.  getTop merges the heaps of the
+ * threads that ran the query.
+ */
+public abstract class KivaTopK extends KivaPartialHandler<KivaTopK.Heap>
+{
+    private final int _k;
+    private final Set<String> _fields;
+
+    /**
+     * @param fields the record fields getScore reads and the results should keep; none to keep every field
+     */
+    protected KivaTopK(int k, String... fields)
+    {
+        if (k < 1)
+            throw new IllegalArgumentException("Must keep at least one record: " + k);
+        _k = k;
+        _fields = fields.length == 0 ? null : new HashSet<String>(Arrays.asList(fields));
+    }
+
+    /**
+     * @return the record's score, or NaN to leave the record out
+     */
+    protected abstract double getScore(JSONObject record)
+            throws Exception;
+
+    /**
+     * Ranks records by a numeric field, leaving out records without it.
+     *
+     * @param fields any other fields the results should keep
+     */
+    public static KivaTopK byField(int k, final String scoreField, String... fields)
+    {
+        final String[] withScore = new String[fields.length + 1];
+        System.arraycopy(fields, 0, withScore, 0, fields.length);
+        withScore[fields.length] = scoreField;
+        return new KivaTopK(k, withScore)
+        {
+            protected double getScore(JSONObject record)
+            {
+                return record.optDouble(scoreField, Double.NaN);
+            }
+        };
+    }
+
+    public Set<String> getFields()
+    {
+        return _fields;
+    }
+
+    public void handle(JSONObject record)
+            throws Exception
+    {
+        final double score = getScore(record);
+        if (Double.isNaN(score)) return;
+        getPartial().offer(score, record);
+    }
+
+    protected Heap newPartial()
+    {
+        return new Heap(_k);
+    }
+
+    /**
+     * @return the k highest scores and their records, highest first
+     */
+    public List<Pair<Double, JSONObject>> getTop()
+    {
+        return getHeap().toList();
+    }
+
+    /**
+     * @return every thread's heap merged into one, for merging with the heaps of other queries
+     */
+    public Heap getHeap()
+    {
+        final Heap heap = new Heap(_k);
+        for (Heap partial : getPartials())
+            heap.merge(partial);
+        return heap;
+    }
+
+    /**
+     * The k highest-scoring records offered, with the lowest of them at the root.  Ties keep the record offered
+     * first.
+     */
+    public static class Heap
+    {
+        private final double[] _scores;
+        private final JSONObject[] _records;
+        private int _size;
+
+        public Heap(int k)
+        {
+            _scores = new double[k];
+            _records = new JSONObject[k];
+        }
+
+        public int size()
+        {
+            return _size;
+        }
+
+        public void offer(double score, JSONObject record)
+        {
+            if (_size < _scores.length)
+            {
+                int i = _size++;
+                while (i > 0 && _scores[(i - 1) / 2] > score)
+                {
+                    set(i, _scores[(i - 1) / 2], _records[(i - 1) / 2]);
+                    i = (i - 1) / 2;
+                }
+                set(i, score, record);
+            }
+            else if (score > _scores[0])
+                siftDown(score, record);
+        }
+
+        private void siftDown(double score, JSONObject record)
+        {
+            int i = 0;
+            for (;;)
+            {
+                int child = 2 * i + 1;
+                if (child >= _size) break;
+                if (child + 1 < _size && _scores[child + 1] < _scores[child])
+                    child++;
+                if (_scores[child] >= score) break;
+                set(i, _scores[child], _records[child]);
+                i = child;
+            }
+            set(i, score, record);
+        }
+
+        private void set(int i, double score, JSONObject record)
+        {
+            _scores[i] = score;
+            _records[i] = record;
+        }
+
+        public void merge(Heap other)
+        {
+            for (int i = 0; i < other._size; i++)
+                offer(other._scores[i], other._records[i]);
+        }
+
+        /**
+         * @return the scores and records, highest first
+         */
+        public List<Pair<Double, JSONObject>> toList()
+        {
+            final Integer[] order = new Integer[_size];
+            for (int i = 0; i < _size; i++)
+                order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer a, Integer b)
+                {
+                    return Double.compare(_scores[b], _scores[a]);
+                }
+            });
+            final List<Pair<Double, JSONObject>> top = new ArrayList<Pair<Double, JSONObject>>(_size);
+            for (Integer i : order)
+                top.add(new Pair<Double, JSONObject>(_scores[i], _records[i]));
+            return top;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.nfolkert.kiva.utils;
+
+import com.nfolkert.collections.Predicate;
+import com.nfolkert.utils.BinarySnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The rows of a columnar snapshot holding each value of one of its dictionary columns, such as country_code or
+ * whereabouts.  Optionally values are normalized first, so that "New York, NY" and "new york ny" share an entry;
+ * each entry keeps the raw values it was built from, with the rows of each, so a predicate on raw values is
+ * still answered exactly.
+ */
+public class KivaValueIndex
+{
+    private static final int kVersion = 2;
+
+    private final String[] _keys;
+    private final boolean _normalized;
+    /**
+     * Raw values of entry i are _values[_valueStarts[i]] up to _values[_valueStarts[i + 1]]
+     */
+    private final int[] _valueStarts;
+    private final String[] _values;
+    /**
+     * Rows of raw value j are _rows[_offsets[j]] up to _rows[_offsets[j + 1]]
+     */
+    private final IntBuffer _offsets;
+    private final IntBuffer _rows;
+
+    private KivaValueIndex(BinarySnapshot.Reader in)
+            throws IOException
+    {
+        final int size = in.getEntryCount();
+        _normalized = in.readInt() != 0;
+        _keys = new String[size];
+        _valueStarts = new int[size + 1];
+        final List<String> values = new ArrayList<String>();
+        for (int i = 0; i < size; i++)
+        {
+            _keys[i] = in.readString();
+            _valueStarts[i] = values.size();
+            for (int count = in.readInt(); count > 0; count--)
+                values.add(in.readString());
+        }
+        _valueStarts[size] = values.size();
+        _values = values.toArray(new String[values.size()]);
+        _offsets = in.readSlice((_values.length + 1) * 4).asIntBuffer();
+        _rows = in.readSlice(_offsets.get(_values.length) * 4).asIntBuffer();
+    }
+
+    /**
+     * @return the index, or null if there is none, or it is of an older version or was built from a snapshot
+     * since replaced
+     */
+    public static KivaValueIndex open(File indexFile, File snapshotFile)
+            throws IOException
+    {
+        if (!indexFile.exists())
+            return null;
+        final BinarySnapshot.Reader in = new BinarySnapshot.Reader(indexFile);
+        if (in.getVersion() != kVersion || !in.readSource(snapshotFile))
+            return null;
+        return new KivaValueIndex(in);
+    }
+
+    /**
+     * @return the value lower-cased, with punctuation dropped and runs of whitespace collapsed to one space
+     */
+    public static String normalize(String value)
+    {
+        final StringBuilder sb = new StringBuilder(value.length());
+        boolean space = false;
+        for (int i = 0; i < value.length(); i++)
+        {
+            final char c = value.charAt(i);
+            if (Character.isLetterOrDigit(c))
+            {
+                if (space && sb.length() > 0)
+                    sb.append(' ');
+                sb.append(Character.toLowerCase(c));
+                space = false;
+            }
+            else
+                space = true;
+        }
+        return sb.toString();
+    }
+
+    static void build(KivaColumnarSnapshot.DictionaryColumn column, int rowCount, boolean normalized,
+                      File snapshotFile, File indexFile)
+            throws Exception
+    {
+        // Each dictionary code maps to the entry of its key, keys sorted so lookups can binary search, and to a
+        // slot among the raw values, which are laid out entry by entry
+        final Set<String> keySet = new TreeSet<String>();
+        final String[] codeKeys = new String[column.getDictionarySize()];
+        for (int code = 0; code < codeKeys.length; code++)
+        {
+            final String value = column.getDictionaryValue(code);
+            codeKeys[code] = normalized ? normalize(value) : value;
+            keySet.add(codeKeys[code]);
+        }
+        final List<String> keys = new ArrayList<String>(keySet);
+        final int[] codeEntries = new int[codeKeys.length];
+        final int[] valueStarts = new int[keys.size() + 1];
+        for (int code = 0; code < codeKeys.length; code++)
+        {
+            codeEntries[code] = Collections.binarySearch(keys, codeKeys[code]);
+            valueStarts[codeEntries[code] + 1]++;
+        }
+        for (int i = 0; i < keys.size(); i++)
+            valueStarts[i + 1] += valueStarts[i];
+        final int[] codeValues = new int[codeKeys.length];
+        final String[] values = new String[codeKeys.length];
+        final int[] nextValue = new int[keys.size()];
+        System.arraycopy(valueStarts, 0, nextValue, 0, keys.size());
+        for (int code = 0; code < codeKeys.length; code++)
+        {
+            codeValues[code] = nextValue[codeEntries[code]]++;
+            values[codeValues[code]] = column.getDictionaryValue(code);
+        }
+
+        final int[] offsets = new int[values.length + 1];
+        for (int row = 0; row < rowCount; row++)
+        {
+            final int code = column.getCode(row);
+            if (code >= 0)
+                offsets[codeValues[code] + 1]++;
+        }
+        for (int i = 0; i < values.length; i++)
+            offsets[i + 1] += offsets[i];
+        final int[] rows = new int[offsets[values.length]];
+        final int[] next = new int[values.length];
+        System.arraycopy(offsets, 0, next, 0, values.length);
+        for (int row = 0; row < rowCount; row++)
+        {
+            final int code = column.getCode(row);
+            if (code >= 0)
+                rows[next[codeValues[code]]++] = row;
+        }
+
+        final BinarySnapshot.Writer out = new BinarySnapshot.Writer(indexFile, kVersion, keys.size());
+        try
+        {
+            out.writeSource(snapshotFile);
+            out.writeInt(normalized ? 1 : 0);
+            for (int i = 0; i < keys.size(); i++)
+            {
+                out.writeString(keys.get(i));
+                out.writeInt(valueStarts[i + 1] - valueStarts[i]);
+                for (int j = valueStarts[i]; j < valueStarts[i + 1]; j++)
+                    out.writeString(values[j]);
+            }
+            out.writeInts(offsets, offsets.length);
+            out.writeInts(rows, rows.length);
+            out.commit();
+        }
+        catch (Exception e)
+        {
+            out.abandon();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of distinct keys
+     */
+    public int size()
+    {
+        return _keys.length;
+    }
+
+    public BitSet rowsFor(String value)
+    {
+        final BitSet rows = new BitSet();
+        final int entry = Arrays.binarySearch(_keys, _normalized ? normalize(value) : value);
+        if (entry >= 0)
+            addRows(_valueStarts[entry], _valueStarts[entry + 1], rows);
+        return rows;
+    }
+
+    /**
+     * @return the rows of every raw value satisfying the predicate, which is evaluated once per raw value, so
+     * entries sharing a normalized key match only on the rows of their values that pass
+     */
+    public BitSet rowsMatching(Predicate<String> predicate)
+    {
+        final BitSet rows = new BitSet();
+        for (int value = 0; value < _values.length; value++)
+            if (predicate.evaluate(_values[value]))
+                addRows(value, value + 1, rows);
+        return rows;
+    }
+
+    /**
+     * @return the candidate rows whose raw value satisfies the predicate, which is evaluated once per raw value
+     * held by some candidate row, and never on values found only outside them
+     */
+    public BitSet rowsMatching(Predicate<String> predicate, BitSet candidates)
+    {
+        final BitSet rows = new BitSet();
+        for (int value = 0; value < _values.length; value++)
+        {
+            boolean evaluated = false;
+            for (int i = _offsets.get(value); i < _offsets.get(value + 1); i++)
+            {
+                final int row = _rows.get(i);
+                if (!candidates.get(row)) continue;
+                if (!evaluated)
+                {
+                    evaluated = true;
+                    if (!predicate.evaluate(_values[value])) break;
+                }
+                rows.set(row);
+            }
+        }
+        return rows;
+    }
+
+    private void addRows(int fromValue, int toValue, BitSet rows)
+    {
+        for (int i = _offsets.get(fromValue); i < _offsets.get(toValue); i++)
+            rows.set(_rows.get(i));
+    }
+}
@@ -2,10 +2,18 @@ package com.nfolkert.kiva.utils;
 
 import com.nfolkert.json.JSONObject;
 
+import java.util.Collections;
+import java.util.Set;
+
 /**
  */
 public class PrintNameHandler extends KivaQueryHandler
 {
+    public Set<String> getFields()
+    {
+        return Collections.singleton("name");
+    }
+
     public void handle(JSONObject lenderOrLoan)
             throws Exception
     {
@@ -15,7 +23,16 @@ public class PrintNameHandler extends KivaQueryHandler
     public static void main(String[] args)
             throws Exception
     {
-        new KivaDump().runQuery(KivaQueryType.Lenders, new PrintNameHandler());
-        new KivaDump().runQuery(KivaQueryType.Loans, new PrintNameHandler());
+        final KivaDump dump = new KivaDump();
+        try
+        {
+            dump.addQuery(KivaQueryType.Lenders, new PrintNameHandler());
+            dump.addQuery(KivaQueryType.Loans, new PrintNameHandler());
+            dump.runQueries();
+        }
+        finally
+        {
+            dump.close();
+        }
     }
 }
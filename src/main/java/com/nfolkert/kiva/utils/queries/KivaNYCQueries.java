@@ -5,10 +5,16 @@ import com.nfolkert.json.JSONException;
 import com.nfolkert.kiva.utils.*;
 import com.nfolkert.googlemaps.GeoCodeManager;
 import com.nfolkert.utils.Pair;
+import com.nfolkert.collections.Predicate;
 
 import java.util.regex.Pattern;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.Future;
 import java.text.DecimalFormat;
 
 import org.apache.commons.lang.StringUtils;
@@ -28,13 +34,22 @@ public class KivaNYCQueries
     private static final DecimalFormat sFormatter = new DecimalFormat("#,##0.0");
     private static final String kUnionSquare = "170 Union Square E New York, NY 10003";
 
+    // Scans are latency bound, so keep a few pages fetching while the current one is handled
+    private static final int kPagesInFlight = 4;
+
+    /**
+     * The lender fields printed in report rows
+     */
+    private static final Set<String> kLenderRowFields = new HashSet<String>(Arrays.asList(
+            "name", "lender_id", "member_since", "whereabouts", "occupation", "loan_count", "personal_url"));
+
 
     public static void buildNYTeamMembers()
             throws Exception
     {
         _nyTeamMembers = new HashSet<String>();
         final Set<String> res = new HashSet<String>();
-        new KivaFetcher().fetchTeamLenders(new KivaFetchHandler.Complete()
+        new KivaFetcher(kPagesInFlight).fetchTeamLenders(new KivaFetchHandler.Complete()
         {
             @Override
             public void handle(JSONObject object)
@@ -132,23 +147,28 @@ public class KivaNYCQueries
     {
         System.out.println("Name\tLender Page\tJoined Team\tJoined Kiva\tLocation\tDistance\tOccupation\tNumber of Loans\tPersonal Webpage");
 
-        final KivaFetcher fetcher = new KivaFetcher();
+        final KivaFetcher fetcher = new KivaFetcher(kPagesInFlight);
+        final KivaLenderBatcher batcher = new KivaLenderBatcher();
+        final List<Pair<Future<JSONObject>, String>> lenders = new ArrayList<Pair<Future<JSONObject>, String>>();
         fetcher.fetchTeamLenders(new KivaFetchHandler.Complete()
         {
             public void handle(JSONObject lenderSummary)
                     throws Exception
             {
                 String lenderId = lenderSummary.getString("lender_id");
-                JSONObject lender = fetcher.getLenderById(lenderId);
                 String teamJoinDate = lenderSummary.optString("team_join_date");
-                printTeamLenderRow(lender, teamJoinDate);
+                lenders.add(new Pair<Future<JSONObject>, String>(batcher.submit(lenderId), teamJoinDate));
             }
         }, kKivaNYCTeamId);
+        batcher.close();
+
+        for (Pair<Future<JSONObject>, String> lenderAndJoinDate : lenders)
+            printTeamLenderRow(lenderAndJoinDate.getHead().get(), lenderAndJoinDate.getTail());
     }
 
     /**
      * How to run the query:
-     * Delete the items from the NewestLenders query cache
+     * The newest lenders are synced incrementally, so each run only reports lenders who joined since the last one
      */
     public static void main(String[] args)
             throws Exception
@@ -156,12 +176,12 @@ public class KivaNYCQueries
         // First time you run, need to clear the appropriate cache for ordered queries
         // KivaResultManager.clearCache(KivaQueryType.values());
 
-        // This cache should be cleared when retrieving latest new york lenders
-        KivaResultManager.clearCache(KivaQueryType.NewestLenders);
-
         // This cache should be cleared when retrieving team lenders (not sure if it's necessary)
         // KivaResultManager.clearCache(KivaQueryType.TeamLenders);
 
+        // Deletes cached results left unindexed by earlier runs that crashed before saving
+        // KivaResultManager.collectGarbage();
+
         try
         {
             // Uncomment to get all NYC team members:
@@ -171,8 +191,22 @@ public class KivaNYCQueries
             // getNYCLendersFromKiva(1, 100);
 
             // Uncomment to get latest lenders joined
-            getLatestNYCLendersFromKiva(1, 100);
+            getNewNYCLendersSinceLastSync(100);
+            // getLatestNYCLendersFromKiva(1, 100);
             // getLatestPittsburghLendersFromKiva(1, 1200);
+
+            // Uncomment to get NYC and Pittsburgh lenders joined since a date from the latest dump:
+            // getLatestLendersFromDump("2009-12-09");
+            // Or from the latest dump's columnar snapshot, built on first use:
+            // getLatestNYCLendersFromSnapshot("2009-12-09");
+            // Or only those added since the previous dump:
+            // getNewNYCLendersBetweenLatestDumps();
+            // Uncomment to get the loans made by NYC lenders in the latest dump:
+            // getNYCLenderLoansFromDump();
+            // Uncomment to get lender counts per city and loans per month from the latest dump:
+            // getDumpStatsByCityAndMonth();
+            // Uncomment to get the NYC lenders with the most loans, and the most common whereabouts, from the latest dump:
+            // getTopNYCLendersFromDump(100);
         }
         finally
         {
@@ -253,7 +287,9 @@ public class KivaNYCQueries
 
         System.out.println("Name\tLender Page\tJoined\tLocation\tDistance\tOccupation\tNumber of Loans\tPersonal Webpage");
 
-        final KivaFetcher fetcher = new KivaFetcher();
+        final KivaFetcher fetcher = new KivaFetcher(kPagesInFlight);
+        final KivaLenderBatcher batcher = new KivaLenderBatcher();
+        final List<Future<JSONObject>> lenders = new ArrayList<Future<JSONObject>>();
         fetcher.fetchLenders(new KivaFetchHandler()
         {
             public boolean continueQuery(JSONObject jobj)
@@ -271,12 +307,13 @@ public class KivaNYCQueries
                 if (id == null) return;
 
                 if (isNYCLender(whereabouts) && !isOnNYCTeam(id))
-                {
-                    JSONObject lender = fetcher.getLenderById(id);
-                    printLenderRow(lender);
-                }
+                    lenders.add(batcher.submit(id));
             }
         }, startAtPage);
+        batcher.close();
+
+        for (Future<JSONObject> lender : lenders)
+            printLenderRow(lender.get());
 
         // System.out.println("Scanned to page " + (currentPage[0] - 1));
     }
@@ -290,7 +327,9 @@ public class KivaNYCQueries
 
         System.out.println("Name\tLender Page\tClaimed\tContacted\tJoined\tLocation\tDistance\tOccupation\tNumber of Loans\tPersonal Webpage");
 
-        final KivaFetcher fetcher = new KivaFetcher();
+        final KivaFetcher fetcher = new KivaFetcher(kPagesInFlight);
+        final KivaLenderBatcher batcher = new KivaLenderBatcher();
+        final List<Future<JSONObject>> lenders = new ArrayList<Future<JSONObject>>();
         fetcher.fetchNewestLenders(new KivaFetchHandler()
         {
             public boolean continueQuery(JSONObject jobj)
@@ -308,12 +347,13 @@ public class KivaNYCQueries
                 if (id == null) return;
 
                 if (isPittsburghLender(whereabouts)) // Do we have a team id for pittsburgh to filter?
-                {
-                    JSONObject lender = fetcher.getLenderById(id);
-                    printLenderRow(lender);
-                }
+                    lenders.add(batcher.submit(id));
             }
         }, startAtPage);
+        batcher.close();
+
+        for (Future<JSONObject> lender : lenders)
+            printLenderRow(lender.get());
 
         // System.out.println("Scanned to page " + (currentPage[0] - 1));
     }
@@ -327,7 +367,9 @@ public class KivaNYCQueries
 
         System.out.println("Name\tLender Page\tClaimed\tContacted\tJoined\tLocation\tDistance\tOccupation\tNumber of Loans\tPersonal Webpage");
 
-        final KivaFetcher fetcher = new KivaFetcher();
+        final KivaFetcher fetcher = new KivaFetcher(kPagesInFlight);
+        final KivaLenderBatcher batcher = new KivaLenderBatcher();
+        final List<Future<JSONObject>> lenders = new ArrayList<Future<JSONObject>>();
         fetcher.fetchNewestLenders(new KivaFetchHandler()
         {
             public boolean continueQuery(JSONObject jobj)
@@ -345,29 +387,310 @@ public class KivaNYCQueries
                 if (id == null) return;
 
                 if (isNYCLender(whereabouts) && !isOnNYCTeam(id))
-                {
-                    JSONObject lender = fetcher.getLenderById(id);
-                    printLenderRow(lender);
-                }
+                    lenders.add(batcher.submit(id));
             }
         }, startAtPage);
+        batcher.close();
+
+        for (Future<JSONObject> lender : lenders)
+            printLenderRow(lender.get());
 
         // System.out.println("Scanned to page " + (currentPage[0] - 1));
     }
 
-    private static void getLatestNYCLendersFromDump()
+    private static void getNewNYCLendersSinceLastSync(final int maxPagesOnFirstSync)
             throws Exception
     {
-        new KivaDump().runQuery(KivaQueryType.Lenders, new KivaQueryHandler()
+        System.out.println("Name\tLender Page\tClaimed\tContacted\tJoined\tLocation\tDistance\tOccupation\tNumber of Loans\tPersonal Webpage");
+
+        final KivaLenderBatcher batcher = new KivaLenderBatcher();
+        final List<Future<JSONObject>> lenders = new ArrayList<Future<JSONObject>>();
+        final KivaNewestLenderSync sync = new KivaNewestLenderSync();
+        sync.sync(new KivaQueryHandler()
         {
-            public void handle(JSONObject lender)
+            public void handle(JSONObject lenderSummary)
                     throws Exception
             {
-                if (isNYCLender(lender.optString("whereabouts")) && isLenderJoinedSince(lender, "2009-12-09"))
+                String whereabouts = lenderSummary.optString("whereabouts");
+                String id = lenderSummary.optString("lender_id");
+                if (id == null) return;
+
+                if (isNYCLender(whereabouts) && !isOnNYCTeam(id))
+                    lenders.add(batcher.submit(id));
+            }
+        }, maxPagesOnFirstSync);
+        batcher.close();
+
+        for (Future<JSONObject> lender : lenders)
+            printLenderRow(lender.get());
+        sync.commit();
+    }
+
+    /**
+     * Both reports come from one pass over the dump's lender entries
+     */
+    private static void getLatestLendersFromDump(final String joinedSince)
+            throws Exception
+    {
+        final KivaDump dump = new KivaDump();
+        try
+        {
+            dump.addQuery(KivaQueryType.Lenders, new KivaQueryHandler()
+            {
+                public Set<String> getFields()
+                {
+                    return kLenderRowFields;
+                }
+
+                public void handle(JSONObject lender)
+                        throws Exception
+                {
+                    if (isNYCLender(lender.optString("whereabouts")) && isLenderJoinedSince(lender, joinedSince))
+                    {
+                        System.out.println("NYC\t" + lender);
+                    }
+                }
+            });
+            dump.addQuery(KivaQueryType.Lenders, new KivaQueryHandler()
+            {
+                public Set<String> getFields()
+                {
+                    return kLenderRowFields;
+                }
+
+                public void handle(JSONObject lender)
+                        throws Exception
+                {
+                    if (isPittsburghLender(lender.optString("whereabouts")) && isLenderJoinedSince(lender, joinedSince))
+                    {
+                        System.out.println("Pittsburgh\t" + lender);
+                    }
+                }
+            });
+            dump.runQueries();
+        }
+        finally
+        {
+            dump.close();
+        }
+    }
+
+    /**
+     * Same report as getLatestLendersFromDump for NYC, over the dump's columnar snapshot and its indexes: joins
+     * are a range of the member_since index, and only the whereabouts of those lenders are geocoded, once per
+     * distinct value
+     */
+    private static void getLatestNYCLendersFromSnapshot(final String joinedSince)
+            throws Exception
+    {
+        final KivaDump dump = new KivaDump();
+        try
+        {
+            final KivaColumnarSnapshot lenders = KivaColumnarSnapshot.openOrBuild(dump, KivaQueryType.Lenders);
+            final BitSet joined = lenders.openOrBuildDayIndex("member_since").rowsOnOrAfter(joinedSince);
+            final BitSet rows = lenders.openOrBuildValueIndex("whereabouts", true).rowsMatching(new Predicate<String>()
+            {
+                public boolean evaluate(String whereabouts)
+                {
+                    try
+                    {
+                        return isNYCLender(whereabouts);
+                    }
+                    catch (Exception e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, joined);
+            lenders.scan(new KivaQueryHandler()
+            {
+                public Set<String> getFields()
+                {
+                    return kLenderRowFields;
+                }
+
+                public void handle(JSONObject lender)
+                        throws Exception
+                {
+                    printLenderRow(lender);
+                }
+            }, rows);
+        }
+        finally
+        {
+            dump.close();
+        }
+    }
+
+    /**
+     * NYC lenders who appear in the latest dump but not the one before it
+     */
+    private static void getNewNYCLendersBetweenLatestDumps()
+            throws Exception
+    {
+        final KivaDumpDelta delta = KivaDumpDelta.betweenLatestDumps();
+        try
+        {
+            delta.run(KivaQueryType.Lenders, new KivaQueryHandler()
+            {
+                public void handle(JSONObject lender)
+                        throws Exception
                 {
-                    System.out.println(lender);
+                    if (isNYCLender(lender.optString("whereabouts")))
+                        printLenderRow(lender);
                 }
+            }, null, null);
+        }
+        finally
+        {
+            delta.close();
+        }
+    }
+
+    /**
+     * Joins NYC lenders to the loans_lenders entries naming them, then those to the loans themselves
+     */
+    private static void getNYCLenderLoansFromDump()
+            throws Exception
+    {
+        final KivaDump dump = new KivaDump();
+        final KivaHashJoin loans = new KivaHashJoin("loan_id", "id", new KivaHashJoin.JoinHandler()
+        {
+            public void handle(JSONObject lender, JSONObject loan)
+                    throws Exception
+            {
+                System.out.println(lender.optString("name") + "\t" + lender.optString("lender_id") + "\t" +
+                                   loan.optInt("id") + "\t" + loan.optString("name") + "\t" +
+                                   loan.optString("sector") + "\t" + loan.optInt("loan_amount"));
+            }
+        });
+        loans.setProbeFields("name", "sector", "loan_amount");
+        final KivaHashJoin lenderLoans = new KivaHashJoin("lender_id", "lender_ids", new KivaHashJoin.JoinHandler()
+        {
+            public void handle(JSONObject lender, JSONObject loanLenders)
+                    throws Exception
+            {
+                lender.put("loan_id", loanLenders.get("id"));
+                loans.getBuildHandler().handle(lender);
             }
         });
+        lenderLoans.setBuildFields("name");
+        lenderLoans.setProbeFields("id");
+        try
+        {
+            final KivaQueryHandler lenderBuild = lenderLoans.getBuildHandler();
+            dump.runQuery(KivaQueryType.Lenders, new KivaQueryHandler()
+            {
+                public Set<String> getFields()
+                {
+                    return kLenderRowFields;
+                }
+
+                public void handle(JSONObject lender)
+                        throws Exception
+                {
+                    if (isNYCLender(lender.optString("whereabouts")))
+                        lenderBuild.handle(lender);
+                }
+            });
+            dump.runQuery(KivaQueryType.LoansLenders, lenderLoans.getProbeHandler());
+            lenderLoans.finish();
+            dump.runQuery(KivaQueryType.Loans, loans.getProbeHandler());
+            loans.finish();
+        }
+        finally
+        {
+            lenderLoans.close();
+            loans.close();
+            dump.close();
+        }
+    }
+
+    /**
+     * Lenders per normalized whereabouts and loans per posted month, both aggregated in one parallel pass
+     */
+    private static void getDumpStatsByCityAndMonth()
+            throws Exception
+    {
+        final KivaDump dump = new KivaDump();
+        try
+        {
+            final KivaGroupBy byCity = new KivaGroupBy("whereabouts")
+            {
+                protected String getGroupKey(JSONObject lender)
+                {
+                    final String city = KivaValueIndex.normalize(lender.optString("whereabouts", ""));
+                    return city.length() == 0 ? null : city;
+                }
+            };
+            final int cityLoans = byCity.addSum("loan_count");
+            final int cityOccupations = byCity.addDistinct("occupation");
+
+            final KivaGroupBy byMonth = KivaGroupBy.byMonth("posted_date");
+            final int monthAmount = byMonth.addSum("loan_amount");
+            final int monthLargest = byMonth.addMax("loan_amount");
+
+            dump.addQuery(KivaQueryType.Lenders, byCity);
+            dump.addQuery(KivaQueryType.Loans, byMonth);
+            dump.runQueries(KivaDump.Delivery.Unordered);
+
+            final KivaGroupBy.Groups cities = byCity.getGroups();
+            for (String city : cities.getSortedKeys())
+            {
+                final int group = cities.find(city);
+                System.out.println(city + "\t" + cities.getCount(group) + "\t" +
+                                   (long) cities.getValue(group, cityLoans) + "\t" +
+                                   cities.getDistinct(group, cityOccupations));
+            }
+            final KivaGroupBy.Groups months = byMonth.getGroups();
+            for (String month : months.getSortedKeys())
+            {
+                final int group = months.find(month);
+                System.out.println(month + "\t" + months.getCount(group) + "\t" +
+                                   (long) months.getValue(group, monthAmount) + "\t" +
+                                   (long) months.getValue(group, monthLargest));
+            }
+        }
+        finally
+        {
+            dump.close();
+        }
+    }
+
+    /**
+     * One pass keeping only the top lenders and the whereabouts counters, rather than every NYC lender
+     */
+    private static void getTopNYCLendersFromDump(final int count)
+            throws Exception
+    {
+        final KivaDump dump = new KivaDump();
+        try
+        {
+            final String[] fields = kLenderRowFields.toArray(new String[kLenderRowFields.size()]);
+            final KivaTopK topLenders = new KivaTopK(count, fields)
+            {
+                protected double getScore(JSONObject lender)
+                        throws Exception
+                {
+                    if (!lender.has("loan_count") || !isNYCLender(lender.optString("whereabouts")))
+                        return Double.NaN;
+                    return lender.optDouble("loan_count");
+                }
+            };
+            final KivaHeavyHitters whereabouts = KivaHeavyHitters.byField(count * 10, "whereabouts");
+            dump.addQuery(KivaQueryType.Lenders, topLenders);
+            dump.addQuery(KivaQueryType.Lenders, whereabouts);
+            dump.runQueries();
+
+            for (Pair<Double, JSONObject> lender : topLenders.getTop())
+                printLenderRow(lender.getTail());
+            final List<KivaHeavyHitters.Counter> counters = whereabouts.getHeavyHitters();
+            for (KivaHeavyHitters.Counter counter : counters.subList(0, Math.min(count, counters.size())))
+                System.out.println(counter);
+        }
+        finally
+        {
+            dump.close();
+        }
     }
 }
@@ -0,0 +1,231 @@
+package com.nfolkert.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compact binary copy of an index that is also kept as JSON, so it loads without parsing text.  The layout is a
+ * magic number, a format version, the entry count, then whatever the owner writes per entry: strings are an int
+ * byte length followed by UTF-8 bytes and numbers are written as primitives.  The snapshot is written after the
+ * JSON it mirrors, so it is only trusted while it is at least as new as that JSON; otherwise the owner falls back
+ * to parsing the JSON.
+ */
+public class BinarySnapshot
+{
+    private static final int kMagic = 0x4b534e50; // "KSNP"
+
+    /**
+     * @return the snapshot to load in place of jsonIndex, or null if it is missing or older than jsonIndex
+     */
+    public static File getCurrent(File jsonIndex)
+    {
+        final File snapshot = getSnapshotFile(jsonIndex);
+        if (!snapshot.exists())
+            return null;
+        if (jsonIndex.exists() && snapshot.lastModified() < jsonIndex.lastModified())
+            return null;
+        return snapshot;
+    }
+
+    public static File getSnapshotFile(File jsonIndex)
+    {
+        return new File(jsonIndex.getPath() + ".bin");
+    }
+
+    /**
+     * Written to a temporary file which replaces the snapshot on commit, so a crash never leaves a partial one.
+     */
+    public static class Writer
+    {
+        private final File _out;
+        private final File _tmp;
+        private final FileOutputStream _fout;
+        private final DataOutputStream _data;
+
+        public Writer(File out, int version, int entryCount)
+                throws IOException
+        {
+            _out = out;
+            _tmp = File.createTempFile(out.getName(), null, out.getAbsoluteFile().getParentFile());
+            _fout = new FileOutputStream(_tmp);
+            _data = new DataOutputStream(new BufferedOutputStream(_fout, 1 << 16));
+            _data.writeInt(kMagic);
+            _data.writeInt(version);
+            _data.writeInt(entryCount);
+        }
+
+        public void writeString(String s)
+                throws IOException
+        {
+            final byte[] bytes = s.getBytes(StringUtilsExt.kCHARSET_UTF8);
+            _data.writeInt(bytes.length);
+            _data.write(bytes);
+        }
+
+        public void writeInt(int i)
+                throws IOException
+        {
+            _data.writeInt(i);
+        }
+
+        public void writeLong(long l)
+                throws IOException
+        {
+            _data.writeLong(l);
+        }
+
+        public void writeDouble(double d)
+                throws IOException
+        {
+            _data.writeDouble(d);
+        }
+
+        /**
+         * Records the length and modification time of the file this snapshot was built from, for readSource.
+         */
+        public void writeSource(File source)
+                throws IOException
+        {
+            _data.writeLong(source.length());
+            _data.writeLong(source.lastModified());
+        }
+
+        public void writeInts(int[] values, int count)
+                throws IOException
+        {
+            for (int i = 0; i < count; i++)
+                _data.writeInt(values[i]);
+        }
+
+        public void writeBytes(byte[] bytes, int offset, int length)
+                throws IOException
+        {
+            _data.write(bytes, offset, length);
+        }
+
+        public void commit()
+                throws IOException
+        {
+            try
+            {
+                _data.flush();
+                _fout.getFD().sync();
+            }
+            finally
+            {
+                _data.close();
+            }
+            FileUtilsExt.moveFile(_tmp, _out);
+        }
+
+        public void abandon()
+        {
+            IOUtils.closeQuietly(_data);
+            _tmp.delete();
+        }
+    }
+
+    /**
+     * Reads a snapshot through a read-only mapping of the whole file.
+     */
+    public static class Reader
+    {
+        private final MappedByteBuffer _buf;
+        private final int _version;
+        private final int _entryCount;
+        private byte[] _scratch = new byte[256];
+
+        public Reader(File in)
+                throws IOException
+        {
+            final FileInputStream fin = new FileInputStream(in);
+            try
+            {
+                final FileChannel channel = fin.getChannel();
+                _buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            finally
+            {
+                fin.close();
+            }
+            try
+            {
+                if (_buf.getInt() != kMagic)
+                    throw new IOException("Not a snapshot: " + in);
+                _version = _buf.getInt();
+                _entryCount = _buf.getInt();
+            }
+            catch (BufferUnderflowException e)
+            {
+                throw new IOException("Truncated snapshot: " + in);
+            }
+        }
+
+        public int getVersion()
+        {
+            return _version;
+        }
+
+        public int getEntryCount()
+        {
+            return _entryCount;
+        }
+
+        public String readString()
+                throws IOException
+        {
+            final int length = _buf.getInt();
+            if (length > _scratch.length)
+                _scratch = new byte[Math.max(length, _scratch.length * 2)];
+            _buf.get(_scratch, 0, length);
+            return new String(_scratch, 0, length, StringUtilsExt.kCHARSET_UTF8);
+        }
+
+        public int readInt()
+        {
+            return _buf.getInt();
+        }
+
+        public long readLong()
+        {
+            return _buf.getLong();
+        }
+
+        public double readDouble()
+        {
+            return _buf.getDouble();
+        }
+
+        /**
+         * @return whether the source still has the length and modification time recorded by writeSource, so the
+         * snapshot was built from this copy of it and not one replaced since
+         */
+        public boolean readSource(File source)
+        {
+            final long length = _buf.getLong();
+            final long lastModified = _buf.getLong();
+            return source.length() == length && source.lastModified() == lastModified;
+        }
+
+        /**
+         * @return a view of the next length bytes, which stays valid after the reader moves past them
+         */
+        public ByteBuffer readSlice(int length)
+        {
+            final ByteBuffer slice = _buf.slice();
+            slice.limit(length);
+            _buf.position(_buf.position() + length);
+            return slice;
+        }
+    }
+}
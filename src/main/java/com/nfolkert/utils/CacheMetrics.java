@@ -0,0 +1,145 @@
+package com.nfolkert.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for one cache: hits and misses, bytes read from and written to it, the time taken to fetch what it
+ * missed and the time taken to parse what it returned.  Obtained from {@link MetricsRegistry}, which exposes it
+ * over JMX.
+ */
+public class CacheMetrics implements CacheMetricsMBean
+{
+    private final String _name;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _bytesRead = new AtomicLong();
+    private final AtomicLong _bytesWritten = new AtomicLong();
+    private final LatencyHistogram _fetch = new LatencyHistogram();
+    private final LatencyHistogram _parse = new LatencyHistogram();
+
+    CacheMetrics(String name)
+    {
+        _name = name;
+    }
+
+    public String getName()
+    {
+        return _name;
+    }
+
+    public void hit(long bytesRead)
+    {
+        _hits.incrementAndGet();
+        _bytesRead.addAndGet(bytesRead);
+    }
+
+    public void miss()
+    {
+        _misses.incrementAndGet();
+    }
+
+    public void written(long bytes)
+    {
+        _bytesWritten.addAndGet(bytes);
+    }
+
+    public void fetched(long nanos)
+    {
+        _fetch.record(nanos);
+    }
+
+    public void parsed(long nanos)
+    {
+        _parse.record(nanos);
+    }
+
+    public long getHits()
+    {
+        return _hits.get();
+    }
+
+    public long getMisses()
+    {
+        return _misses.get();
+    }
+
+    public double getHitRate()
+    {
+        final long hits = _hits.get();
+        final long total = hits + _misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getBytesRead()
+    {
+        return _bytesRead.get();
+    }
+
+    public long getBytesWritten()
+    {
+        return _bytesWritten.get();
+    }
+
+    public long getFetches()
+    {
+        return _fetch.getCount();
+    }
+
+    public double getFetchMeanMillis()
+    {
+        return _fetch.getMeanMillis();
+    }
+
+    public double getFetch50thMillis()
+    {
+        return _fetch.getPercentileMillis(50);
+    }
+
+    public double getFetch99thMillis()
+    {
+        return _fetch.getPercentileMillis(99);
+    }
+
+    public double getFetchMaxMillis()
+    {
+        return _fetch.getMaxMillis();
+    }
+
+    public long getParses()
+    {
+        return _parse.getCount();
+    }
+
+    public double getParseMeanMillis()
+    {
+        return _parse.getMeanMillis();
+    }
+
+    public double getParse99thMillis()
+    {
+        return _parse.getPercentileMillis(99);
+    }
+
+    public String getSummary()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(_name).append(": ").append(getHits()).append(" hits, ").append(getMisses()).append(" misses (")
+                .append(Math.round(getHitRate() * 100)).append("%), ").append(getBytesRead() / 1024).append(" KB read, ")
+                .append(getBytesWritten() / 1024).append(" KB written");
+        if (_fetch.getCount() > 0)
+            sb.append("; fetch ").append(_fetch);
+        if (_parse.getCount() > 0)
+            sb.append("; parse ").append(_parse);
+        return sb.toString();
+    }
+
+    public void reset()
+    {
+        _hits.set(0);
+        _misses.set(0);
+        _bytesRead.set(0);
+        _bytesWritten.set(0);
+        _fetch.reset();
+        _parse.reset();
+    }
+}
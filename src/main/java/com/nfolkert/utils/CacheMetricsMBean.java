@@ -0,0 +1,37 @@
+package com.nfolkert.utils;
+
+/**
+ * Management interface of {@link CacheMetrics}.
+ */
+public interface CacheMetricsMBean
+{
+    long getHits();
+
+    long getMisses();
+
+    double getHitRate();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getFetches();
+
+    double getFetchMeanMillis();
+
+    double getFetch50thMillis();
+
+    double getFetch99thMillis();
+
+    double getFetchMaxMillis();
+
+    long getParses();
+
+    double getParseMeanMillis();
+
+    double getParse99thMillis();
+
+    String getSummary();
+
+    void reset();
+}
@@ -0,0 +1,26 @@
+package com.nfolkert.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names worker threads after their pool and marks them as daemons so an abandoned pool never keeps the
+ * JVM alive after main() returns.
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+    private final String _poolName;
+    private final AtomicInteger _threadCount = new AtomicInteger();
+
+    public DaemonThreadFactory(String poolName)
+    {
+        _poolName = poolName;
+    }
+
+    public Thread newThread(Runnable r)
+    {
+        final Thread thread = new Thread(r, _poolName + "-" + _threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -1,6 +1,10 @@
 package com.nfolkert.utils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -27,4 +31,29 @@ public class FileUtils
         }
         return latestFile;
     }
+
+    /**
+     * @return the directory's files matching the optional pattern, most recently modified first
+     */
+    public static List<File> getFilesByLastModified(File inDirectory, Pattern optionalFileNamePattern)
+    {
+        if (!inDirectory.isDirectory()) throw new IllegalArgumentException();
+        final List<File> files = new ArrayList<File>();
+        for (File f: inDirectory.listFiles())
+        {
+            if (optionalFileNamePattern != null &&
+                !optionalFileNamePattern.matcher(f.getName()).matches()) continue;
+            files.add(f);
+        }
+        Collections.sort(files, new Comparator<File>()
+        {
+            public int compare(File o1, File o2)
+            {
+                final long m1 = o1.lastModified();
+                final long m2 = o2.lastModified();
+                return m1 > m2 ? -1 : m1 < m2 ? 1 : 0;
+            }
+        });
+        return files;
+    }
 }
@@ -611,6 +611,37 @@ public class FileUtilsExt
         renameTmpFile(tmpFile, out);
     }
 
+    /**
+     * Like writeFile, but syncs the new contents to disk before renaming them into place, and never renames a
+     * partly written file, so a crash or a full disk leaves either the old contents or the new ones.
+     */
+    public static void writeFileDurably(final File out, final String contents)
+            throws IOException
+    {
+        final File tmpFile = File.createTempFile(out.getName(), null, out.getParentFile());
+
+        final FileOutputStream fout = new FileOutputStream(tmpFile);
+        boolean written = false;
+        try
+        {
+            final Writer writer = new OutputStreamWriter(fout);
+            writer.write(contents);
+            writer.flush();
+            fout.getFD().sync();
+            written = true;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(fout);
+            if (!written)
+                tmpFile.delete();
+        }
+
+        // Renaming over the old file replaces it in one step where the platform allows it
+        if (!tmpFile.renameTo(out))
+            renameTmpFile(tmpFile, out);
+    }
+
     private static void renameTmpFile(final File tmpFile, final File out)
             throws IOException
     {
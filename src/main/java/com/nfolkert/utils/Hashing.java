@@ -0,0 +1,40 @@
+package com.nfolkert.utils;
+
+/**
+ * Fast non-cryptographic 64-bit hashes of strings, for hash tables, partitioning and sketches.  Not stable across
+ * changes to this class, so anything persisting them should record a version of its own.
+ */
+public class Hashing
+{
+    private Hashing()
+    {
+    }
+
+    /**
+     * 64-bit FNV-1a over the string's chars
+     */
+    public static long fnv1a64(String s)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++)
+        {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * MurmurHash3's 64-bit finalizer, which spreads FNV's weak high bits across the whole hash for uses that read
+     * its high bits or take it modulo a power of two
+     */
+    public static long mix64(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
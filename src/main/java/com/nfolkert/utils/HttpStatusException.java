@@ -0,0 +1,49 @@
+package com.nfolkert.utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a URLTransport when the server answers with a status outside of 2xx.
+ */
+public class HttpStatusException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String _url;
+    private final int _statusCode;
+    private final long _retryAfterMillis;
+
+    public HttpStatusException(String url, int statusCode, String statusMessage)
+    {
+        this(url, statusCode, statusMessage, -1);
+    }
+
+    /**
+     * @param retryAfterMillis how long the server asked us to wait before trying again, or -1 if it didn't say
+     */
+    public HttpStatusException(String url, int statusCode, String statusMessage, long retryAfterMillis)
+    {
+        super("HTTP " + statusCode + (statusMessage == null ? "" : " " + statusMessage) + " for " + url);
+        _url = url;
+        _statusCode = statusCode;
+        _retryAfterMillis = retryAfterMillis;
+    }
+
+    public String getURL()
+    {
+        return _url;
+    }
+
+    public int getStatusCode()
+    {
+        return _statusCode;
+    }
+
+    /**
+     * @return the wait asked for by the response's Retry-After header, or -1 if it had none
+     */
+    public long getRetryAfterMillis()
+    {
+        return _retryAfterMillis;
+    }
+}
@@ -0,0 +1,81 @@
+package com.nfolkert.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in power-of-two microsecond buckets, so percentiles are accurate to within a
+ * factor of two whatever the range of values recorded.
+ */
+public class LatencyHistogram
+{
+    private static final int kBuckets = 40;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(kBuckets);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _totalNanos = new AtomicLong();
+    private final AtomicLong _maxNanos = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        if (nanos < 0) nanos = 0;
+        final long micros = nanos / 1000;
+        final int bucket = Math.min(kBuckets - 1, 64 - Long.numberOfLeadingZeros(micros));
+        _buckets.incrementAndGet(bucket);
+        _count.incrementAndGet();
+        _totalNanos.addAndGet(nanos);
+
+        long max = _maxNanos.get();
+        while (nanos > max && !_maxNanos.compareAndSet(max, nanos))
+            max = _maxNanos.get();
+    }
+
+    public long getCount()
+    {
+        return _count.get();
+    }
+
+    public double getMeanMillis()
+    {
+        final long count = _count.get();
+        return count == 0 ? 0 : _totalNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxMillis()
+    {
+        return _maxNanos.get() / 1e6;
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given percentile, capped at the largest value recorded
+     */
+    public double getPercentileMillis(double percentile)
+    {
+        final long count = _count.get();
+        if (count == 0) return 0;
+        final long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < kBuckets; i++)
+        {
+            seen += _buckets.get(i);
+            if (seen >= rank)
+                return Math.min((1L << i) / 1e3, getMaxMillis());
+        }
+        return getMaxMillis();
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < kBuckets; i++)
+            _buckets.set(i, 0);
+        _count.set(0);
+        _totalNanos.set(0);
+        _maxNanos.set(0);
+    }
+
+    public String toString()
+    {
+        return String.format("n=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms", getCount(), getMeanMillis(),
+                             getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+    }
+}
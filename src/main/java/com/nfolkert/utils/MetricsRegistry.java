@@ -0,0 +1,79 @@
+package com.nfolkert.utils;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide set of named {@link CacheMetrics}, each registered as an MBean under
+ * "com.nfolkert:type=CacheMetrics,name=..." so it can be watched from jconsole while a run is in progress.  A
+ * reporter can also print all of them periodically.
+ */
+public class MetricsRegistry
+{
+    private static final String kDomain = "com.nfolkert";
+
+    private static final Map<String, CacheMetrics> _caches = new TreeMap<String, CacheMetrics>();
+    private static ScheduledExecutorService _reporter;
+
+    public static synchronized CacheMetrics getCacheMetrics(String name)
+    {
+        CacheMetrics metrics = _caches.get(name);
+        if (metrics == null)
+        {
+            metrics = new CacheMetrics(name);
+            _caches.put(name, metrics);
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        metrics, new ObjectName(kDomain + ":type=CacheMetrics,name=" + ObjectName.quote(name)));
+            }
+            catch (Exception e)
+            {
+                System.err.println("Failed to register metrics " + name + " over JMX: " + e);
+            }
+        }
+        return metrics;
+    }
+
+    public static void report(PrintStream out)
+    {
+        final List<CacheMetrics> caches;
+        synchronized (MetricsRegistry.class)
+        {
+            caches = new ArrayList<CacheMetrics>(_caches.values());
+        }
+        for (CacheMetrics metrics : caches)
+            out.println(metrics.getSummary());
+    }
+
+    /**
+     * Prints every registered cache's metrics to stdout each period until stopReporter.
+     */
+    public static synchronized void startReporter(long periodMillis)
+    {
+        stopReporter();
+        _reporter = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("MetricsReporter"));
+        _reporter.scheduleAtFixedRate(new Runnable()
+        {
+            public void run()
+            {
+                report(System.out);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stopReporter()
+    {
+        if (_reporter == null) return;
+        _reporter.shutdownNow();
+        _reporter = null;
+    }
+}
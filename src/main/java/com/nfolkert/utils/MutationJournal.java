@@ -0,0 +1,152 @@
+package com.nfolkert.utils;
+
+import com.nfolkert.json.JSONException;
+import com.nfolkert.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Append-only log of mutations to an index that is otherwise saved as a whole snapshot.  Each mutation is one line
+ * of JSON, handed to the OS as soon as it is appended, so a crashed run loses nothing; sync() forces it to disk.
+ * On startup the owner loads its snapshot and replays the journal over it.  Once the journal has grown, the
+ * owner writes a new snapshot and resets the journal.  Replay applies every mutation in order, so a crash between
+ * writing the snapshot and resetting the journal only replays mutations the snapshot already holds.
+ */
+public class MutationJournal
+{
+    private final File _file;
+    private FileOutputStream _out;
+    private Writer _writer;
+    private int _entries;
+
+    public MutationJournal(File file)
+    {
+        _file = file;
+    }
+
+    /**
+     * Reads back every complete mutation.  A torn final line, left by a crash mid-append, is dropped and truncated
+     * away so later appends start on a clean line.
+     */
+    public synchronized List<JSONObject> replay()
+            throws IOException
+    {
+        final List<JSONObject> mutations = new ArrayList<JSONObject>();
+        if (!_file.exists())
+            return mutations;
+
+        BufferedReader in = null;
+        long goodBytes = 0;
+        try
+        {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(_file), StringUtilsExt.kCHARSET_UTF8));
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.length() == 0) continue;
+                try
+                {
+                    mutations.add(new JSONObject(line));
+                }
+                catch (JSONException e)
+                {
+                    break;
+                }
+                goodBytes += line.getBytes(StringUtilsExt.kCHARSET_UTF8).length + 1;
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+
+        if (goodBytes < _file.length())
+        {
+            final FileOutputStream truncate = new FileOutputStream(_file, true);
+            try
+            {
+                truncate.getChannel().truncate(goodBytes);
+            }
+            finally
+            {
+                truncate.close();
+            }
+        }
+        _entries = mutations.size();
+        return mutations;
+    }
+
+    public synchronized void append(JSONObject mutation)
+            throws IOException
+    {
+        if (_writer == null)
+        {
+            _out = new FileOutputStream(_file, true);
+            _writer = new OutputStreamWriter(_out, StringUtilsExt.kCHARSET_UTF8);
+        }
+        _writer.write(mutation.toString());
+        _writer.write('\n');
+        _writer.flush();
+        _entries++;
+    }
+
+    public synchronized void sync()
+            throws IOException
+    {
+        if (_writer == null) return;
+        _writer.flush();
+        _out.getFD().sync();
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return _entries;
+    }
+
+    /**
+     * Discards the journal once a snapshot holding all of its mutations has been written.
+     */
+    public synchronized void reset()
+            throws IOException
+    {
+        close();
+        if (_file.exists() && !_file.delete())
+            throw new IOException("Failed to reset journal " + _file);
+        _entries = 0;
+    }
+
+    public synchronized void close()
+            throws IOException
+    {
+        if (_writer == null) return;
+        try
+        {
+            _writer.close();
+        }
+        finally
+        {
+            _writer = null;
+            _out = null;
+        }
+    }
+
+    /**
+     * @return whether the journal has grown enough, relative to the snapshot it applies to, that writing a new
+     * snapshot is cheaper than replaying it on the next start
+     */
+    public synchronized boolean shouldCheckpoint(int snapshotEntries)
+    {
+        return _entries >= Math.max(1000, snapshotEntries / 4);
+    }
+}
@@ -0,0 +1,138 @@
+package com.nfolkert.utils;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Transport over HttpURLConnection that keeps connections alive between requests.  The JDK pools idle
+ * keep-alive connections per host, but only hands a connection back once its response has been read to the
+ * end and closed, so every stream returned here drains what is left of the body when it is closed (and error
+ * bodies are drained before the status is reported).  Keep-alive and the pool size are JDK-wide settings,
+ * which configureKeepAlive sets for the whole JVM; URLUtils does so before creating its default transport.
+ */
+public class PooledURLTransport implements URLTransport
+{
+    public static final int kDefaultConnectTimeoutMillis = 10 * 1000;
+    public static final int kDefaultReadTimeoutMillis = 60 * 1000;
+    public static final int kDefaultMaxKeptAliveConnections = 8;
+
+    private final int _connectTimeoutMillis;
+    private final int _readTimeoutMillis;
+
+    public PooledURLTransport()
+    {
+        this(kDefaultConnectTimeoutMillis, kDefaultReadTimeoutMillis);
+    }
+
+    public PooledURLTransport(int connectTimeoutMillis, int readTimeoutMillis)
+    {
+        _connectTimeoutMillis = connectTimeoutMillis;
+        _readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Turns on keep-alive for every HttpURLConnection in the JVM, and unless http.maxConnections is already set,
+     * sets it to the given maximum of kept-alive connections per destination.  The JDK reads these only before
+     * its first connection, so this must be called before then to take effect.
+     */
+    public static void configureKeepAlive(int maxKeptAliveConnections)
+    {
+        System.setProperty("http.keepAlive", "true");
+        if (System.getProperty("http.maxConnections") == null)
+            System.setProperty("http.maxConnections", String.valueOf(maxKeptAliveConnections));
+    }
+
+    public byte[] getBytes(String url)
+            throws IOException
+    {
+        final InputStream in = openStream(url);
+        try
+        {
+            final ByteArrayOutputStream bout = new ByteArrayOutputStream(8192);
+            FileUtilsExt.transferStream(in, bout, 8192);
+            return bout.toByteArray();
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public InputStream openStream(String url)
+            throws IOException
+    {
+        final URLConnection conn = new URL(url).openConnection();
+        conn.setConnectTimeout(_connectTimeoutMillis);
+        conn.setReadTimeout(_readTimeoutMillis);
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+
+        if (conn instanceof HttpURLConnection)
+        {
+            final HttpURLConnection http = (HttpURLConnection) conn;
+            final int status = http.getResponseCode();
+            if (status < 200 || status >= 300)
+            {
+                final InputStream error = http.getErrorStream();
+                if (error != null)
+                    new DrainOnClose(error).close();
+                throw new HttpStatusException(url, status, http.getResponseMessage(), getRetryAfterMillis(http));
+            }
+        }
+
+        final InputStream raw = new DrainOnClose(conn.getInputStream());
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding()))
+            return new GZIPInputStream(raw, 8192);
+        return raw;
+    }
+
+    /**
+     * Reads Retry-After, which is either a number of seconds or an HTTP date.
+     */
+    private static long getRetryAfterMillis(HttpURLConnection http)
+    {
+        final String retryAfter = http.getHeaderField("Retry-After");
+        if (retryAfter == null) return -1;
+        try
+        {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        }
+        catch (NumberFormatException e)
+        {
+            final long date = http.getHeaderFieldDate("Retry-After", -1);
+            return date < 0 ? -1 : Math.max(0, date - System.currentTimeMillis());
+        }
+    }
+
+    private static class DrainOnClose extends FilterInputStream
+    {
+        DrainOnClose(InputStream in)
+        {
+            super(in);
+        }
+
+        public void close()
+                throws IOException
+        {
+            try
+            {
+                final byte[] skip = new byte[4096];
+                while (in.read(skip) >= 0)
+                {
+                    // discard the rest of the body so the connection can go back to the pool
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+    }
+}
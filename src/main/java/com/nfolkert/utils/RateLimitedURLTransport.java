@@ -0,0 +1,279 @@
+package com.nfolkert.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Wraps another transport with a token bucket per host.  Responses of 429 and 5xx are retried with jittered
+ * exponential backoff and halve that host's rate; fast successful responses grow it again additively, slow ones
+ * shrink it a little, so the rate settles just under what the server is willing to take.  A Retry-After header
+ * on the response replaces the backoff, and holds back every request to that host until it has passed.  The
+ * rate never grows past the ceiling given, which by default is the configured rate itself.
+ */
+public class RateLimitedURLTransport implements URLTransport
+{
+    private static final long kNanosPerMilli = 1000L * 1000L;
+    private static final long kNanosPerSecond = 1000L * kNanosPerMilli;
+
+    private final URLTransport _transport;
+    private final double _initialPermitsPerSecond;
+    private final double _minPermitsPerSecond;
+    private final double _maxPermitsPerSecond;
+    private final int _burst;
+    private final long _targetLatencyMillis;
+    private final int _maxRetries;
+    private final long _baseBackoffMillis;
+    private final long _maxBackoffMillis;
+
+    private final Map<String, TokenBucket> _buckets = new HashMap<String, TokenBucket>();
+    private final Random _jitter = new Random();
+
+    private long _permits;
+    private long _waitNanos;
+    private long _maxWaitNanos;
+    private long _retries;
+
+    public RateLimitedURLTransport(URLTransport transport, double permitsPerSecond, int burst)
+    {
+        this(transport, permitsPerSecond, permitsPerSecond / 8, permitsPerSecond, burst, 2000, 5, 500, 60 * 1000);
+    }
+
+    public RateLimitedURLTransport(URLTransport transport,
+                                   double initialPermitsPerSecond,
+                                   double minPermitsPerSecond,
+                                   double maxPermitsPerSecond,
+                                   int burst,
+                                   long targetLatencyMillis,
+                                   int maxRetries,
+                                   long baseBackoffMillis,
+                                   long maxBackoffMillis)
+    {
+        if (minPermitsPerSecond <= 0 || initialPermitsPerSecond < minPermitsPerSecond ||
+            maxPermitsPerSecond < initialPermitsPerSecond)
+            throw new IllegalArgumentException("Bad rate bounds: " + minPermitsPerSecond + " <= " +
+                                               initialPermitsPerSecond + " <= " + maxPermitsPerSecond);
+        if (burst < 1) throw new IllegalArgumentException("Burst must be at least 1: " + burst);
+
+        _transport = transport;
+        _initialPermitsPerSecond = initialPermitsPerSecond;
+        _minPermitsPerSecond = minPermitsPerSecond;
+        _maxPermitsPerSecond = maxPermitsPerSecond;
+        _burst = burst;
+        _targetLatencyMillis = targetLatencyMillis;
+        _maxRetries = maxRetries;
+        _baseBackoffMillis = baseBackoffMillis;
+        _maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public byte[] getBytes(String url)
+            throws IOException
+    {
+        final TokenBucket bucket = getBucket(url);
+        for (int attempt = 0 ;; attempt++)
+        {
+            acquire(bucket);
+            final long start = System.nanoTime();
+            try
+            {
+                final byte[] result = _transport.getBytes(url);
+                bucket.onSuccess((System.nanoTime() - start) / kNanosPerMilli);
+                return result;
+            }
+            catch (HttpStatusException e)
+            {
+                if (!shouldRetry(bucket, e, attempt))
+                    throw e;
+            }
+        }
+    }
+
+    public InputStream openStream(String url)
+            throws IOException
+    {
+        final TokenBucket bucket = getBucket(url);
+        for (int attempt = 0 ;; attempt++)
+        {
+            acquire(bucket);
+            final long start = System.nanoTime();
+            try
+            {
+                final InputStream result = _transport.openStream(url);
+                bucket.onSuccess((System.nanoTime() - start) / kNanosPerMilli);
+                return result;
+            }
+            catch (HttpStatusException e)
+            {
+                if (!shouldRetry(bucket, e, attempt))
+                    throw e;
+            }
+        }
+    }
+
+    private boolean shouldRetry(TokenBucket bucket, HttpStatusException e, int attempt)
+            throws IOException
+    {
+        final int status = e.getStatusCode();
+        if (status != 429 && status < 500)
+            return false;
+
+        final long retryAfterMillis = e.getRetryAfterMillis();
+        bucket.onThrottled(Math.max(0, retryAfterMillis) * kNanosPerMilli);
+        if (attempt >= _maxRetries)
+            return false;
+
+        if (retryAfterMillis >= 0)
+        {
+            // the bucket now holds every request back until the server's wait is over, this retry included
+            if (retryAfterMillis > _maxBackoffMillis)
+                return false;
+            synchronized (this)
+            {
+                _retries++;
+            }
+            return true;
+        }
+
+        final long ceiling = Math.min(_maxBackoffMillis, _baseBackoffMillis << Math.min(attempt, 20));
+        final long sleepMillis;
+        synchronized (this)
+        {
+            _retries++;
+            sleepMillis = (long) (_jitter.nextDouble() * ceiling);
+        }
+        sleep(sleepMillis * kNanosPerMilli);
+        return true;
+    }
+
+    private synchronized TokenBucket getBucket(String url)
+            throws IOException
+    {
+        final String host = new URL(url).getHost().toLowerCase();
+        TokenBucket bucket = _buckets.get(host);
+        if (bucket == null)
+        {
+            bucket = new TokenBucket();
+            _buckets.put(host, bucket);
+        }
+        return bucket;
+    }
+
+    private void acquire(TokenBucket bucket)
+            throws IOException
+    {
+        final long waitNanos = bucket.reserve();
+        sleep(waitNanos);
+        synchronized (this)
+        {
+            _permits++;
+            _waitNanos += waitNanos;
+            _maxWaitNanos = Math.max(_maxWaitNanos, waitNanos);
+        }
+    }
+
+    private static void sleep(long nanos)
+            throws IOException
+    {
+        if (nanos <= 0) return;
+        try
+        {
+            Thread.sleep(nanos / kNanosPerMilli, (int) (nanos % kNanosPerMilli));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a request permit");
+        }
+    }
+
+    public synchronized long getPermitsAcquired()
+    {
+        return _permits;
+    }
+
+    public synchronized long getTotalWaitMillis()
+    {
+        return _waitNanos / kNanosPerMilli;
+    }
+
+    public synchronized long getMaxWaitMillis()
+    {
+        return _maxWaitNanos / kNanosPerMilli;
+    }
+
+    public synchronized long getRetries()
+    {
+        return _retries;
+    }
+
+    public synchronized double getPermitsPerSecond(String host)
+    {
+        final TokenBucket bucket = _buckets.get(host.toLowerCase());
+        return bucket == null ? _initialPermitsPerSecond : bucket.getRate();
+    }
+
+    public synchronized void dumpStats()
+    {
+        System.out.println("Acquired " + _permits + " request permits, waiting " + getTotalWaitMillis() +
+                           " ms in total (max " + getMaxWaitMillis() + " ms); retried " + _retries + " requests");
+        for (Map.Entry<String, TokenBucket> entry : _buckets.entrySet())
+            System.out.println("\t" + entry.getKey() + ": " + String.format("%.2f", entry.getValue().getRate()) +
+                               " requests/sec");
+    }
+
+    private class TokenBucket
+    {
+        private double _rate = _initialPermitsPerSecond;
+        private double _tokens = _burst;
+        private long _lastRefill = System.nanoTime();
+
+        synchronized double getRate()
+        {
+            return _rate;
+        }
+
+        /**
+         * Takes a token, possibly going into debt, and returns how long the caller must wait before the debt is
+         * paid off.  Reserving rather than blocking under the lock keeps waiters queued in arrival order.
+         */
+        synchronized long reserve()
+        {
+            refill();
+            _tokens -= 1;
+            return _tokens >= 0 ? 0 : (long) (-_tokens * kNanosPerSecond / _rate);
+        }
+
+        /**
+         * Credits the time since the last refill at the current rate, so must come before any change to the rate
+         */
+        private void refill()
+        {
+            final long now = System.nanoTime();
+            _tokens = Math.min(_burst, _tokens + (now - _lastRefill) * _rate / kNanosPerSecond);
+            _lastRefill = now;
+        }
+
+        synchronized void onSuccess(long latencyMillis)
+        {
+            refill();
+            if (latencyMillis <= _targetLatencyMillis)
+                _rate = Math.min(_maxPermitsPerSecond, _rate + _initialPermitsPerSecond / 10);
+            else
+                _rate = Math.max(_minPermitsPerSecond, _rate * 0.9);
+        }
+
+        /**
+         * @param pauseNanos how long no request may go out, on top of the usual spacing
+         */
+        synchronized void onThrottled(long pauseNanos)
+        {
+            refill();
+            _rate = Math.max(_minPermitsPerSecond, _rate / 2);
+            _tokens = Math.min(_tokens, -pauseNanos * _rate / kNanosPerSecond);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.nfolkert.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fetches the body of a URL.  Implementations decode any transfer encoding (e.g. gzip) so callers always see
+ * the raw entity bytes, and report non-2xx responses as an HttpStatusException.
+ */
+public interface URLTransport
+{
+    public byte[] getBytes(String url)
+            throws IOException;
+
+    /**
+     * The caller must close the returned stream; closing it lets the underlying connection be reused.
+     */
+    public InputStream openStream(String url)
+            throws IOException;
+}
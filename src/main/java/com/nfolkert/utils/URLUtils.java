@@ -1,30 +1,46 @@
 package com.nfolkert.utils;
 
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.InputStream;
 
 /**
  */
 public class URLUtils
 {
+    private static volatile URLTransport _transport = createDefaultTransport();
+
+    private static URLTransport createDefaultTransport()
+    {
+        PooledURLTransport.configureKeepAlive(PooledURLTransport.kDefaultMaxKeptAliveConnections);
+        return new PooledURLTransport();
+    }
+
+    public static URLTransport getTransport()
+    {
+        return _transport;
+    }
+
+    public static void setTransport(URLTransport transport)
+    {
+        if (transport == null) throw new IllegalArgumentException();
+        _transport = transport;
+    }
+
     public static String getURL(String urlStr)
             throws IOException
     {
-        String result;
-        URL url = new URL(urlStr);
-        URLConnection conn = url.openConnection();
-        BufferedReader rd = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-        StringBuffer sb = new StringBuffer();
-        String line;
-        while ((line = rd.readLine()) != null)
-        {
-            sb.append(line);
-        }
-        rd.close();
-        result = sb.toString();
-        return result;
+        return new String(getURLBytes(urlStr), StringUtilsExt.kCHARSET_UTF8);
+    }
+
+    public static byte[] getURLBytes(String urlStr)
+            throws IOException
+    {
+        return _transport.getBytes(urlStr);
+    }
+
+    public static InputStream openURL(String urlStr)
+            throws IOException
+    {
+        return _transport.openStream(urlStr);
     }
 }